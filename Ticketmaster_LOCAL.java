@@ -13,18 +13,80 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.List;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.postgresql.copy.CopyManager;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,200 +95,5521 @@ import java.util.Random;
  */
 
 public class Ticketmaster{
-    //reference to physical database connection
-    private Connection _connection = null;
+    //number of prepared statements kept open per connection
+    static final int STATEMENT_CACHE_SIZE = Integer.getInteger("ticketmaster.statementCacheSize", 64);
+    //rows fetched per round trip when streaming a result through a cursor
+    static final int FETCH_SIZE = Integer.getInteger("ticketmaster.fetchSize", 1000);
+    //rows per page of the listing operations
+    static final int PAGE_SIZE = Math.max(1, Integer.getInteger("ticketmaster.pageSize", 50));
+
+    //pool of physical database connections shared by all sessions
+    private volatile ConnectionPool _pool = null;
+    //released once the pool is open or failed to open, see connect
+    private final CountDownLatch _ready = new CountDownLatch(1);
+    private volatile SQLException _connectFailure = null;
+    //connection pinned to the current thread by runOnSession, if any
+    private final ThreadLocal<PooledConnection> _session = new ThreadLocal<PooledConnection>();
+    //free/held bitmaps of the shows looked at so far
+    private SeatIndex _seats = null;
+    //latency, row and error counters per operation and per SQL template
+    private final Metrics _metrics = new Metrics();
+    //results of the read-only listing operations
+    private final ResultCache _results = new ResultCache();
+    //which emails belong to registered users
+    private UserDirectory _users;
+    //leases of pending bookings
+    private final HoldManager _holds = new HoldManager(this);
+    //record of every committed mutation, null unless -Dticketmaster.journal.dir is set
+    private volatile Journal _journal = null;
+    //standbys the listing operations read from
+    private ReplicaRouter _replicas;
+    //monthly partitions of Shows and ShowSeats
+    private final PartitionManager _partitions = new PartitionManager(this);
+    //name the statistics are registered under with JMX
+    private ObjectName _mbeanName = null;
+
+    //menu operation names, indexed by menu number
+    static final String[] OPERATIONS = { null, "AddUser", "AddBooking", "AddMovieShowingToTheater",
+        "CancelPendingBookings", "ChangeSeatsForBooking", "RemovePayment", "ClearCancelledBookings",
+        "RemoveShowsOnDate", "ListTheatersPlayingShow", "ListShowsStartingOnTimeAndDate",
+        "ListMovieTitlesContainingLoveReleasedAfter2010", "ListUsersWithPendingBooking",
+        "ListMovieAndShowInfoAtCinemaInDateRange", "ListBookingInfoForUser" };
     static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    //answers to the prompts of the current thread in batch mode, null when reading the console
+    static final ThreadLocal<Iterator<String>> scriptedInput = new ThreadLocal<Iterator<String>>();
     
     public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
+        this(dbname, dbport, user, passwd, false);
+    }
+
+    /**
+     * @param lazy when true, returns at once and connects on a background
+     *        thread, then warms up the hot statements; operations wait for
+     *        the connection when they need it
+     */
+    public Ticketmaster(String dbname, String dbport, String user, String passwd, boolean lazy) throws SQLException {
+        // constructs the connection URL. stringtype=unspecified lets the server
+        // infer the type of every bound parameter, so ids and dates can be bound as text.
+        String primary = System.getProperty("ticketmaster.primary", "localhost:" + dbport);
+        final String url = "jdbc:postgresql://" + primary + "/" + dbname + "?stringtype=unspecified";
+        final String username = user;
+        final String password = passwd;
+        this._seats = new SeatIndex(this);
+        this._users = new UserDirectory(this);
+        this._replicas = new ReplicaRouter(this, dbname, user, passwd);
+        String journalDir = System.getProperty("ticketmaster.journal.dir");
+        if (journalDir != null) {
+            try {
+                this._journal = new Journal(new File(journalDir));
+            } catch (IOException e) {
+                System.err.println("Unable to open the journal, mutations are not journaled: " + e.getMessage());
+            }
+        }
+        if (lazy) {
+            Thread connector = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Class.forName("org.postgresql.Driver");
+                        connect(url, username, password);
+                    } catch (Exception e) {
+                        System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+                        return;
+                    }
+                    try {
+                        warmUp();
+                    } catch (SQLException e) {
+                        System.err.println("Warm-up stopped: " + e.getMessage());
+                    }
+                    STARTUP.warmedUp();
+                }
+            }, "ticketmaster-connect");
+            connector.setDaemon(true);
+            connector.start();
+            return;
+        }
+
         System.out.print("Connecting to database...");
         try{
-            // constructs the connection URL
-            String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
             System.out.println ("Connection URL: " + url + "\n");
-            
-            // obtain a physical connection
-            this._connection = DriverManager.getConnection(url, user, passwd);
+            connect(url, user, passwd);
             System.out.println("Done");
         }catch(Exception e){
             System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
             System.out.println("Make sure you started postgres on this machine");
             System.exit(-1);
         }
-    }
-    
-    /**
-     * Method to execute an update SQL statement.  Update SQL instructions
-     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-     * 
-     * @param sql the input SQL string
-     * @throws java.sql.SQLException when update failed
-     * */
-    public void executeUpdate (String sql) throws SQLException { 
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+    }
+
+    /**
+     * Opens the pool, which obtains the first physical connection, and
+     * starts everything that needs the database.
+     */
+    private void connect(String url, String user, String passwd) throws Exception {
+        try {
+            this._pool = new ConnectionPool(url, user, passwd);
+        } catch (Exception e) {
+            _connectFailure = e instanceof SQLException ? (SQLException) e : new SQLException(e.getMessage(), e);
+            throw e;
+        } finally {
+            _ready.countDown();
+        }
+        STARTUP.connected();
+        this._seats.start();
+        this._users.start();
+        this._replicas.start();
+        registerStatistics();
+        if (Boolean.getBoolean("ticketmaster.indexes.checkOnStartup")) {
+            try {
+                new IndexAdvisor(this, System.out).run(false);
+            } catch (SQLException e) {
+                System.err.println("Unable to check the indexes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the pool, once it is open
+     * @throws java.sql.SQLException when the background connect failed
+     */
+    private ConnectionPool pool() throws SQLException {
+        if (_ready.getCount() > 0) {
+            try {
+                _ready.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting", e);
+            }
+        }
+        if (_connectFailure != null) throw new SQLException("Unable to connect to the database: " + _connectFailure.getMessage(), _connectFailure);
+        return _pool;
+    }
+
+    /**
+     * Warms minIdle pooled connections with the first booking's statements,
+     * rolled back and kept out of the statistics.
+     */
+    void warmUp() throws SQLException {
+        final int iterations = Integer.getInteger("ticketmaster.warmup.iterations", 5);
+        ConnectionPool pool = pool();
+        int connections = Math.min(pool.maxSize, Math.max(1, Integer.getInteger("ticketmaster.warmup.connections", pool.minIdle)));
+        //held together, so every borrow hands out a different connection
+        List<PooledConnection> borrowed = new ArrayList<PooledConnection>();
+        try {
+            for (int i = 0; i < connections; ++i) borrowed.add(pool.borrow());
+            for (PooledConnection conn : borrowed) {
+                _session.set(conn);
+                try {
+                    warmUp(conn, iterations);
+                } catch (SQLException e) {
+                    conn.failed(e);
+                    throw e;
+                } finally {
+                    _session.remove();
+                }
+            }
+        } finally {
+            for (PooledConnection conn : borrowed) pool.release(conn);
+        }
+    }
+
+    private void warmUp(final PooledConnection session, final int iterations) throws SQLException {
+        unmeasured(new SessionWork<Void>() {
+            public Void run() throws SQLException {
+                session.conn.setAutoCommit(false);
+                try {
+                    for (int i = 0; i < iterations; ++i) {
+                        //user lookup, booking, seat lookup and reservation; none of them matches a row
+                        executeQueryAndReturnColumns("SELECT * FROM Users WHERE email = ?", "");
+                        executeQueryAndReturnColumns(CREATE_BOOKING, "{}");
+                        executeQueryAndReturnColumns(SeatIndex.LOAD, "-1");
+                        executeUpdate(RESERVE_SEAT, "-1", "-1", "-1");
+                    }
+                } finally {
+                    session.afterCommit.clear();
+                    session.conn.rollback();
+                    session.conn.setAutoCommit(true);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Milestones of the process start, measured from JVM start.
+     */
+    static class StartupReport {
+        private volatile long mainMillis = -1;
+        private volatile long menuMillis = -1;
+        private volatile long connectedMillis = -1;
+        private volatile long warmedUpMillis = -1;
+        private volatile long firstOperationMillis = -1;
+        private volatile long firstOperationMicros = -1;
+        private volatile String firstOperation = null;
+
+        static long uptime() {
+            return ManagementFactory.getRuntimeMXBean().getUptime();
+        }
+
+        void mainEntered() { mainMillis = uptime(); }
+        void menuShown() { if (menuMillis < 0) menuMillis = uptime(); }
+        void connected() { connectedMillis = uptime(); }
+        void warmedUp() { warmedUpMillis = uptime(); }
+
+        synchronized void operationFinished(String name, long startNanos) {
+            if (firstOperation != null) return;
+            firstOperationMicros = (System.nanoTime() - startNanos) / 1000;
+            firstOperationMillis = uptime();
+            firstOperation = name;
+        }
+
+        private static String at(long millis) {
+            return millis < 0 ? "-" : millis + " ms";
+        }
+
+        public String toString() {
+            return "main " + at(mainMillis) + ", menu " + at(menuMillis) + ", connected " + at(connectedMillis) +
+                ", warmed up " + at(warmedUpMillis) + ", first operation " +
+                (firstOperation == null ? "-" : firstOperation + " took " + firstOperationMicros / 1000.0 + " ms (done at " + firstOperationMillis + " ms)");
+        }
+    }
+
+    static final StartupReport STARTUP = new StartupReport();
+
+    /**
+     * LRU cache of prepared statements for one connection, keyed by SQL template.
+     */
+    static class StatementCache {
+        private final Connection conn;
+        private final LinkedHashMap<String, PreparedStatement> statements;
+
+        StatementCache(Connection conn, final int capacity) {
+            this.conn = conn;
+            //access ordered, so the eldest entry is the least recently used one
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= capacity) return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Returns the cached statement for sql, preparing it on a miss.
+         *
+         * @param sql the SQL template, using ? for parameters
+         * @param params the values bound to the template, in order
+         * @return the prepared statement with all parameters bound
+         * @throws java.sql.SQLException when the statement could not be prepared
+         */
+        PreparedStatement prepare(String sql, Object... params) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                stmt = conn.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            bind(stmt, params);
+            return stmt;
+        }
+
+        /**
+         * Replaces the parameters of stmt with params.
+         */
+        static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+            stmt.clearParameters();
+            for (int i = 0; i < params.length; ++i)
+                stmt.setObject(i + 1, params[i]);
+        }
+
+        int size() {
+            return statements.size();
+        }
+
+        void close() {
+            for (Iterator<PreparedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+                closeQuietly(it.next());
+                it.remove();
+            }
+        }
+
+        private static void closeQuietly(Statement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }//end StatementCache
+
+    /**
+     * A physical connection owned by the pool, together with its statement
+     * cache and the bookkeeping used for eviction.
+     */
+    static class PooledConnection {
+        final Connection conn;
+        final StatementCache statements;
+        final long createdAt = System.currentTimeMillis();
+        long lastUsed = createdAt;
+        //set once the connection reported a connection-level error
+        boolean broken = false;
+        //number of failures seen on this connection, used by batch mode to spot failed commands
+        int errors = 0;
+        //the last serialization failure or deadlock; the open transaction can only be rerun as a whole
+        SQLException retry = null;
+        //when set, transactions nested in the open one run inside a savepoint
+        boolean savepoints = false;
+        //server process id, used to recognize notifications caused by our own writes
+        final int backendPid;
+        //work to run once the open transaction commits
+        final List<Runnable> afterCommit = new ArrayList<Runnable>();
+        //the result cache invalidation queued in afterCommit for each table the open transaction wrote
+        final Map<String, TableInvalidation> invalidations = new HashMap<String, TableInvalidation>();
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+            this.statements = new StatementCache(conn, STATEMENT_CACHE_SIZE);
+            this.backendPid = backendPid(conn);
+        }
+
+        static int backendPid(Connection conn) {
+            try {
+                return conn.unwrap(PGConnection.class).getBackendPID();
+            } catch (SQLException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Records a failure on this connection. SQLState class 08 means the
+         * connection itself is gone, so it must not go back to the pool.
+         */
+        void failed(SQLException e) {
+            errors++;
+            if (isRetryable(e)) retry = e;
+            String state = e.getSQLState();
+            if (state != null && state.startsWith("08")) broken = true;
+        }
+
+        void close() {
+            statements.close();
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }//end PooledConnection
+
+    /**
+     * Bounded pool of physical connections, handed out most recently used
+     * first. Limits come from -Dticketmaster.pool.* properties.
+     */
+    static class ConnectionPool {
+        final int maxSize = Integer.getInteger("ticketmaster.pool.maxSize", 8);
+        final int minIdle = Integer.getInteger("ticketmaster.pool.minIdle", 1);
+        final long borrowTimeoutMillis = Long.getLong("ticketmaster.pool.borrowTimeoutMillis", 30000L);
+        final long validateIdleMillis = Long.getLong("ticketmaster.pool.validateIdleMillis", 1000L);
+        final long maxIdleMillis = Long.getLong("ticketmaster.pool.maxIdleMillis", 60000L);
+        final long maxLifetimeMillis = Long.getLong("ticketmaster.pool.maxLifetimeMillis", 1800000L);
+
+        private final String url;
+        private final String user;
+        private final String passwd;
+        private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+        //backend pids of all open connections of this pool
+        final Set<Integer> backendPids = ConcurrentHashMap.newKeySet();
+        private final Thread evictor;
+        //open connections, borrowed or idle, plus the ones being opened
+        private int total = 0;
+        private boolean closed = false;
+
+        //metrics
+        private long borrows = 0;
+        private long waits = 0;
+        private long timeouts = 0;
+        private long waitNanos = 0;
+        private long maxWaitNanos = 0;
+        private long opened = 0;
+        private long evicted = 0;
+
+        ConnectionPool(String url, String user, String passwd) throws SQLException {
+            this.url = url;
+            this.user = user;
+            this.passwd = passwd;
+            for (int i = 0; i < Math.max(1, minIdle); ++i) {
+                idle.push(open());
+                total++;
+            }
+            evictor = new Thread(new Runnable() {
+                public void run() {
+                    evictLoop();
+                }
+            }, "ticketmaster-pool-evictor");
+            evictor.setDaemon(true);
+            evictor.start();
+        }
+
+        private PooledConnection open() throws SQLException {
+            PooledConnection pc = new PooledConnection(openUnpooled());
+            backendPids.add(pc.backendPid);
+            synchronized (this) {
+                opened++;
+            }
+            return pc;
+        }
+
+        /**
+         * Opens a connection that is not managed by the pool, for long lived
+         * work such as listening for notifications. The caller closes it.
+         */
+        Connection openUnpooled() throws SQLException {
+            return DriverManager.getConnection(url, user, passwd);
+        }
+
+        private boolean expired(PooledConnection pc, long now) {
+            return pc.broken || now - pc.createdAt > maxLifetimeMillis;
+        }
+
+        /**
+         * Takes a connection out of the pool, opening a new one while below
+         * maxSize and waiting up to borrowTimeoutMillis otherwise.
+         *
+         * @return a validated connection, to be handed back with release
+         * @throws java.sql.SQLException when no connection became available in time
+         */
+        PooledConnection borrow() throws SQLException {
+            long start = System.nanoTime();
+            long deadline = start + borrowTimeoutMillis * 1000000L;
+            boolean waited = false;
+            while (true) {
+                PooledConnection pc = null;
+                synchronized (this) {
+                    while (pc == null) {
+                        if (closed) throw new SQLException("Connection pool is closed", "08003");
+                        pc = idle.pollFirst();
+                        if (pc != null) break;
+                        if (total < maxSize) {
+                            total++;
+                            break;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            timeouts++;
+                            throw new SQLException("Timed out waiting for a database connection", "08001");
+                        }
+                        waited = true;
+                        try {
+                            wait(remaining / 1000000L + 1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("Interrupted waiting for a database connection", "08001");
+                        }
+                    }
+                }
+
+                //validation and connecting happen outside the lock
+                long now = System.currentTimeMillis();
+                if (pc == null) {
+                    try {
+                        pc = open();
+                    } catch (SQLException e) {
+                        discarded(null);
+                        throw e;
+                    }
+                } else if (expired(pc, now) || (now - pc.lastUsed > validateIdleMillis && !valid(pc))) {
+                    discard(pc);
+                    continue;
+                }
+                recordBorrow(System.nanoTime() - start, waited);
+                return pc;
+            }
+        }
+
+        private boolean valid(PooledConnection pc) {
+            try {
+                return pc.conn.isValid(5);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private synchronized void recordBorrow(long nanos, boolean waited) {
+            borrows++;
+            if (waited) waits++;
+            waitNanos += nanos;
+            maxWaitNanos = Math.max(maxWaitNanos, nanos);
+        }
+
+        /**
+         * Hands a borrowed connection back. A connection left inside a
+         * transaction is rolled back first.
+         */
+        void release(PooledConnection pc) {
+            long now = System.currentTimeMillis();
+            pc.afterCommit.clear();
+            try {
+                if (!pc.broken && !pc.conn.getAutoCommit()) {
+                    pc.conn.rollback();
+                    pc.conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                pc.broken = true;
+            }
+            synchronized (this) {
+                if (!closed && !expired(pc, now)) {
+                    pc.lastUsed = now;
+                    idle.push(pc);
+                    notify();
+                    return;
+                }
+            }
+            discard(pc);
+        }
+
+        private void discard(PooledConnection pc) {
+            backendPids.remove(pc.backendPid);
+            pc.close();
+            discarded(pc);
+        }
+
+        private synchronized void discarded(PooledConnection pc) {
+            total--;
+            if (pc != null) evicted++;
+            notify();
+        }
+
+        private void evictLoop() {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1000L, Math.min(maxIdleMillis, maxLifetimeMillis) / 4));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                List<PooledConnection> stale = new ArrayList<PooledConnection>();
+                synchronized (this) {
+                    if (closed) return;
+                    long now = System.currentTimeMillis();
+                    //the least recently used connections sit at the tail
+                    Iterator<PooledConnection> it = idle.descendingIterator();
+                    while (it.hasNext()) {
+                        PooledConnection pc = it.next();
+                        boolean idleTooLong = now - pc.lastUsed > maxIdleMillis && total - stale.size() > minIdle;
+                        if (idleTooLong || expired(pc, now)) {
+                            it.remove();
+                            stale.add(pc);
+                        }
+                    }
+                }
+                for (PooledConnection pc : stale) discard(pc);
+            }
+        }
+
+        synchronized String getStatistics() {
+            return String.format("connections: %d open (%d idle, max %d), %d opened, %d evicted; "
+                    + "borrows: %d, %d waited, %d timed out, avg wait %.3f ms, max wait %.3f ms",
+                total, idle.size(), maxSize, opened, evicted, borrows, waits, timeouts,
+                borrows == 0 ? 0.0 : waitNanos / 1e6 / borrows, maxWaitNanos / 1e6);
+        }
+
+        void close() {
+            List<PooledConnection> toClose;
+            backendPids.clear();
+            synchronized (this) {
+                closed = true;
+                toClose = new ArrayList<PooledConnection>(idle);
+                idle.clear();
+                notifyAll();
+            }
+            evictor.interrupt();
+            for (PooledConnection pc : toClose) discard(pc);
+        }
+    }//end ConnectionPool
+
+    /**
+     * Column oriented, read-only query result. asRows() gives the
+     * List<List<String>> view returned by executeQueryAndReturnResult.
+     */
+    public static class ColumnarResult {
+        static final int INT = 0;
+        static final int LONG = 1;
+        static final int DOUBLE = 2;
+        static final int DATE = 3;
+        static final int STRING = 4;
+
+        private final String[] names;
+        private final int[] types;
+        //int[], long[] or double[] per column; DATE and STRING columns use int[]
+        private final Object[] data;
+        private final BitSet[] nulls;
+        private final List<List<String>> dictionaries = new ArrayList<List<String>>();
+        private final List<Map<String, Integer>> codes = new ArrayList<Map<String, Integer>>();
+        private int rowCount = 0;
+        private int capacity = 16;
+
+        private ColumnarResult(ResultSetMetaData rsmd) throws SQLException {
+            int numCol = rsmd.getColumnCount ();
+            names = new String[numCol];
+            types = new int[numCol];
+            data = new Object[numCol];
+            nulls = new BitSet[numCol];
+            for (int c = 0; c < numCol; ++c) {
+                names[c] = rsmd.getColumnName (c + 1);
+                types[c] = typeOf (rsmd.getColumnType (c + 1));
+                nulls[c] = new BitSet ();
+                dictionaries.add (types[c] == STRING ? new ArrayList<String>() : null);
+                codes.add (types[c] == STRING ? new HashMap<String, Integer>() : null);
+                switch (types[c]) {
+                    case LONG: data[c] = new long[capacity]; break;
+                    case DOUBLE: data[c] = new double[capacity]; break;
+                    default: data[c] = new int[capacity]; break;
+                }
+            }
+        }
+
+        private static int typeOf(int sqlType) {
+            switch (sqlType) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER: return INT;
+                case Types.BIGINT: return LONG;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE: return DOUBLE;
+                case Types.DATE: return DATE;
+                //NUMERIC stays text so its scale prints exactly as the server sent it
+                default: return STRING;
+            }
+        }
+
+        /**
+         * Reads the remaining rows of rs into a new result. rs is not closed.
+         *
+         * @param rs the result set to read
+         * @return the materialized result
+         * @throws java.sql.SQLException when reading rs failed
+         */
+        public static ColumnarResult from(ResultSet rs) throws SQLException {
+            ColumnarResult result = new ColumnarResult (rs.getMetaData ());
+            while (rs.next ()) result.append (rs);
+            return result;
+        }
+
+        private void append(ResultSet rs) throws SQLException {
+            if (rowCount == capacity) grow ();
+            int row = rowCount++;
+            for (int c = 0; c < types.length; ++c) {
+                switch (types[c]) {
+                    case INT: ((int[]) data[c])[row] = rs.getInt (c + 1); break;
+                    case LONG: ((long[]) data[c])[row] = rs.getLong (c + 1); break;
+                    case DOUBLE: ((double[]) data[c])[row] = rs.getDouble (c + 1); break;
+                    case DATE: {
+                        java.sql.Date date = rs.getDate (c + 1);
+                        if (date != null) ((int[]) data[c])[row] = (int) date.toLocalDate ().toEpochDay ();
+                        break;
+                    }
+                    default: {
+                        String value = rs.getString (c + 1);
+                        if (value != null) ((int[]) data[c])[row] = encode (c, value);
+                        break;
+                    }
+                }
+                if (rs.wasNull ()) nulls[c].set (row);
+            }
+        }
+
+        private int encode(int col, String value) {
+            Map<String, Integer> dict = codes.get (col);
+            Integer code = dict.get (value);
+            if (code == null) {
+                code = dict.size ();
+                dict.put (value, code);
+                dictionaries.get (col).add (value);
+            }
+            return code;
+        }
+
+        private void grow() {
+            capacity *= 2;
+            for (int c = 0; c < data.length; ++c) {
+                if (data[c] instanceof long[]) data[c] = Arrays.copyOf ((long[]) data[c], capacity);
+                else if (data[c] instanceof double[]) data[c] = Arrays.copyOf ((double[]) data[c], capacity);
+                else data[c] = Arrays.copyOf ((int[]) data[c], capacity);
+            }
+        }
+
+        public int rowCount() {
+            return rowCount;
+        }
+
+        public int columnCount() {
+            return names.length;
+        }
+
+        public String columnName(int col) {
+            return names[col];
+        }
+
+        /**
+         * @param name a column label, case insensitive
+         * @return the 0-based index of the column, or -1 if there is none
+         */
+        public int findColumn(String name) {
+            for (int c = 0; c < names.length; ++c)
+                if (names[c].equalsIgnoreCase (name)) return c;
+            return -1;
+        }
+
+        public boolean isNull(int row, int col) {
+            check (row);
+            return nulls[col].get (row);
+        }
+
+        public int getInt(int row, int col) {
+            check (row);
+            if (types[col] == INT) return ((int[]) data[col])[row];
+            if (types[col] == LONG) return (int) ((long[]) data[col])[row];
+            return Integer.parseInt (getString (row, col));
+        }
+
+        public long getLong(int row, int col) {
+            check (row);
+            if (types[col] == INT) return ((int[]) data[col])[row];
+            if (types[col] == LONG) return ((long[]) data[col])[row];
+            return Long.parseLong (getString (row, col));
+        }
+
+        public double getDouble(int row, int col) {
+            check (row);
+            switch (types[col]) {
+                case INT: return ((int[]) data[col])[row];
+                case LONG: return ((long[]) data[col])[row];
+                case DOUBLE: return ((double[]) data[col])[row];
+                default: return Double.parseDouble (getString (row, col));
+            }
+        }
+
+        public LocalDate getDate(int row, int col) {
+            if (isNull (row, col)) return null;
+            if (types[col] == DATE) return LocalDate.ofEpochDay (((int[]) data[col])[row]);
+            return LocalDate.parse (getString (row, col));
+        }
+
+        /**
+         * @return the value in the text form the server would have sent, or null
+         */
+        public String getString(int row, int col) {
+            if (isNull (row, col)) return null;
+            switch (types[col]) {
+                case INT: return Integer.toString (((int[]) data[col])[row]);
+                case LONG: return Long.toString (((long[]) data[col])[row]);
+                case DOUBLE: {
+                    double value = ((double[]) data[col])[row];
+                    //the server prints whole floats without a fraction
+                    if (value == Math.rint (value) && Math.abs (value) < 1e15) return Long.toString ((long) value);
+                    return Double.toString (value);
+                }
+                case DATE: return LocalDate.ofEpochDay (((int[]) data[col])[row]).toString ();
+                default: return dictionaries.get (col).get (((int[]) data[col])[row]);
+            }
+        }
+
+        private void check(int row) {
+            if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException ("row " + row + " of " + rowCount);
+        }
+
+        /**
+         * Writes the result the way executeQueryAndPrintResult does: tab
+         * separated, with a header line when there is at least one row.
+         */
+        public void print(PrintWriter out) {
+            print (out, rowCount);
+        }
+
+        /**
+         * Same as print, but stops after the first limit rows.
+         */
+        public void print(PrintWriter out, int limit) {
+            if (rowCount == 0) return;
+            for (String name : names) {
+                out.print (name);
+                out.print ('\t');
+            }
+            out.println ();
+            for (int row = 0; row < Math.min (limit, rowCount); ++row) {
+                for (int c = 0; c < names.length; ++c) {
+                    out.print (getString (row, c));
+                    out.print ('\t');
+                }
+                out.println ();
+            }
+        }
+
+        /**
+         * @return a read-only row view of this result; values are converted to
+         *         strings each time they are read
+         */
+        public List<List<String>> asRows() {
+            return new AbstractList<List<String>>() {
+                public List<String> get(final int row) {
+                    check (row);
+                    return new AbstractList<String>() {
+                        public String get(int col) {
+                            return getString (row, col);
+                        }
+
+                        public int size() {
+                            return names.length;
+                        }
+                    };
+                }
+
+                public int size() {
+                    return rowCount;
+                }
+            };
+        }
+    }//end ColumnarResult
+
+    /**
+     * Lock-free log-linear latency histogram in microseconds, about 3% precision.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        //values below 2 * SUB get a bucket each, every power of two above gets SUB buckets
+        private final AtomicLongArray counts = new AtomicLongArray (2 * SUB + 40 * SUB);
+        private final AtomicLong total = new AtomicLong ();
+        private final AtomicLong sum = new AtomicLong ();
+        private final AtomicLong max = new AtomicLong ();
+
+        static int index(long value) {
+            if (value < 2 * SUB) return (int) Math.max (0, value);
+            int exp = 63 - Long.numberOfLeadingZeros (value) - SUB_BITS;
+            return 2 * SUB + (exp - 1) * SUB + (int) ((value >> exp) - SUB);
+        }
+
+        static long upperBound(int index) {
+            if (index < 2 * SUB) return index;
+            int exp = (index - 2 * SUB) / SUB + 1;
+            long sub = (index - 2 * SUB) % SUB + SUB;
+            return ((sub + 1) << exp) - 1;
+        }
+
+        void record(long micros) {
+            counts.incrementAndGet (Math.min (index (micros), counts.length () - 1));
+            total.incrementAndGet ();
+            sum.addAndGet (micros);
+            long m;
+            while (micros > (m = max.get ()) && !max.compareAndSet (m, micros)) {
+                // retry.
+            }
+        }
+
+        long count() {
+            return total.get ();
+        }
+
+        long max() {
+            return max.get ();
+        }
+
+        double mean() {
+            long n = total.get ();
+            return n == 0 ? 0.0 : (double) sum.get () / n;
+        }
+
+        /**
+         * @param p the percentile, e.g. 99.9
+         * @return the upper bound of the bucket holding the p-th percentile
+         */
+        long percentile(double p) {
+            long n = total.get ();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil (p / 100.0 * n);
+            long seen = 0;
+            for (int i = 0; i < counts.length (); ++i) {
+                seen += counts.get (i);
+                if (seen >= Math.max (1, rank)) return Math.min (upperBound (i), max.get ());
+            }
+            return max.get ();
+        }
+    }//end LatencyHistogram
+
+    /**
+     * Counters of one menu operation or one SQL template.
+     */
+    static class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram ();
+        final AtomicLong errors = new AtomicLong ();
+        final AtomicLong rows = new AtomicLong ();
+        final AtomicLong roundTrips = new AtomicLong ();
+        final AtomicLong retries = new AtomicLong ();
+        final AtomicLong aborts = new AtomicLong ();
+
+        OperationStatistics snapshot(String name) {
+            long calls = latency.count ();
+            return new OperationStatistics (name, calls, errors.get (), rows.get (),
+                calls == 0 ? 0.0 : (double) roundTrips.get () / calls, latency.mean (),
+                latency.percentile (50), latency.percentile (99), latency.percentile (99.9), latency.max (),
+                retries.get (), aborts.get ());
+        }
+    }
+
+    /**
+     * Point-in-time statistics of one operation or SQL template, as shown
+     * by the statistics menu entry and exposed through JMX.
+     */
+    public static class OperationStatistics {
+        private final String name;
+        private final long calls;
+        private final long errors;
+        private final long rows;
+        private final double roundTripsPerCall;
+        private final double meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long p999Micros;
+        private final long maxMicros;
+        private final long retries;
+        private final long aborts;
+
+        public OperationStatistics(String name, long calls, long errors, long rows, double roundTripsPerCall,
+                double meanMicros, long p50Micros, long p99Micros, long p999Micros, long maxMicros,
+                long retries, long aborts) {
+            this.name = name;
+            this.calls = calls;
+            this.errors = errors;
+            this.rows = rows;
+            this.roundTripsPerCall = roundTripsPerCall;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+            this.retries = retries;
+            this.aborts = aborts;
+        }
+
+        public String getName() { return name; }
+        public long getCalls() { return calls; }
+        public long getErrors() { return errors; }
+        public long getRows() { return rows; }
+        public double getRoundTripsPerCall() { return roundTripsPerCall; }
+        public double getMeanMicros() { return meanMicros; }
+        public long getP50Micros() { return p50Micros; }
+        public long getP99Micros() { return p99Micros; }
+        public long getP999Micros() { return p999Micros; }
+        public long getMaxMicros() { return maxMicros; }
+        public long getRetries() { return retries; }
+        public long getAborts() { return aborts; }
+    }
+
+    /**
+     * Statistics of this Ticketmaster instance, registered with the platform
+     * MBean server as Ticketmaster:type=Statistics.
+     */
+    public interface StatisticsMXBean {
+        List<OperationStatistics> getOperations();
+        List<OperationStatistics> getStatements();
+        String getPoolStatistics();
+        String getResultCacheStatistics();
+        String getReplicaStatistics();
+        String getStartup();
+        void reset();
+    }
+
+    /**
+     * Per-operation and per-SQL-template statistics; every helper call and
+     * commit counts as a round trip of the operation on the same thread.
+     */
+    static class Metrics {
+        //round trips, failed statements, rows, transaction retries and aborts
+        //of the operation running on this thread
+        private static final ThreadLocal<long[]> current = new ThreadLocal<long[]>();
+        //set while this thread runs statements that are not counted, see unmeasured
+        static final ThreadLocal<Boolean> unmeasured = new ThreadLocal<Boolean>();
+
+        private volatile ConcurrentHashMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+        private volatile ConcurrentHashMap<String, OperationStats> statements = new ConcurrentHashMap<String, OperationStats>();
+
+        private static OperationStats stats(ConcurrentHashMap<String, OperationStats> map, String name) {
+            OperationStats stats = map.get (name);
+            if (stats == null) {
+                map.putIfAbsent (name, new OperationStats ());
+                stats = map.get (name);
+            }
+            return stats;
+        }
+
+        static void roundTrip() {
+            long[] context = current.get ();
+            if (context != null) context[0]++;
+        }
+
+        /**
+         * @return the failed statements of the current operation so far
+         */
+        static long errors() {
+            long[] context = current.get ();
+            return context == null ? 0 : context[1];
+        }
+
+        /**
+         * Counts a transaction retry. The statements of the failed attempt
+         * no longer count as errors of the operation.
+         *
+         * @param errors the failed statements before the attempt, from errors()
+         */
+        static void retried(long errors) {
+            long[] context = current.get ();
+            if (context == null) return;
+            context[1] = errors;
+            context[3]++;
+        }
+
+        /**
+         * Counts a transaction that was given up after its last retry.
+         */
+        static void aborted() {
+            long[] context = current.get ();
+            if (context != null) context[4]++;
+        }
+
+        /**
+         * Records one execution of sql that started at startNanos.
+         *
+         * @param rows the rows returned or affected, negative when it failed
+         */
+        void statement(String sql, long startNanos, long rows) {
+            if (unmeasured.get () != null) return;
+            OperationStats stats = stats (statements, sql);
+            stats.latency.record ((System.nanoTime () - startNanos) / 1000);
+            stats.roundTrips.incrementAndGet ();
+            if (rows < 0) stats.errors.incrementAndGet ();
+            else stats.rows.addAndGet (rows);
+            long[] context = current.get ();
+            if (context != null) {
+                context[0]++;
+                if (rows < 0) context[1]++;
+                else context[2] += rows;
+            }
+        }
+
+        /**
+         * Starts counting round trips for an operation on this thread.
+         *
+         * @return the context of an enclosing operation, to be passed to endOperation
+         */
+        long[] beginOperation() {
+            long[] outer = current.get ();
+            current.set (new long[5]);
+            return outer;
+        }
+
+        /**
+         * Records an operation started with beginOperation. It counts as an
+         * error when any of its statements failed or it threw.
+         */
+        void endOperation(String name, long startNanos, boolean threw, long[] outer) {
+            long[] context = current.get ();
+            if (outer == null) current.remove ();
+            else current.set (outer);
+            OperationStats stats = stats (operations, name);
+            stats.latency.record ((System.nanoTime () - startNanos) / 1000);
+            stats.roundTrips.addAndGet (context[0]);
+            stats.rows.addAndGet (context[2]);
+            stats.retries.addAndGet (context[3]);
+            stats.aborts.addAndGet (context[4]);
+            if (threw || context[1] > 0) stats.errors.incrementAndGet ();
+        }
+
+        static List<OperationStatistics> snapshot(Map<String, OperationStats> map) {
+            List<OperationStatistics> result = new ArrayList<OperationStatistics>();
+            for (Map.Entry<String, OperationStats> e : map.entrySet ()) result.add (e.getValue ().snapshot (e.getKey ()));
+            result.sort (new Comparator<OperationStatistics>() {
+                public int compare(OperationStatistics a, OperationStatistics b) {
+                    return Double.compare (b.getMeanMicros () * b.getCalls (), a.getMeanMicros () * a.getCalls ());
+                }
+            });
+            return result;
+        }
+
+        List<OperationStatistics> operations() {
+            return snapshot (operations);
+        }
+
+        List<OperationStatistics> statements() {
+            return snapshot (statements);
+        }
+
+        void reset() {
+            operations = new ConcurrentHashMap<String, OperationStats>();
+            statements = new ConcurrentHashMap<String, OperationStats>();
+        }
+
+        /**
+         * Prints one table row per entry, ordered by total time spent.
+         */
+        static void print(PrintStream out, String title, List<OperationStatistics> entries) {
+            out.println (title);
+            out.printf ("%-48s %8s %6s %10s %7s %10s %10s %10s %10s %6s %6s%n",
+                "NAME", "CALLS", "ERRORS", "ROWS", "RT/CALL", "P50 us", "P99 us", "P999 us", "MAX us", "RETRY", "ABORT");
+            for (OperationStatistics e : entries) {
+                String name = e.getName ().replaceAll ("\\s+", " ");
+                if (name.length () > 48) name = name.substring (0, 45) + "...";
+                out.printf ("%-48s %8d %6d %10d %7.1f %10d %10d %10d %10d %6d %6d%n", name, e.getCalls (), e.getErrors (),
+                    e.getRows (), e.getRoundTripsPerCall (), e.getP50Micros (), e.getP99Micros (), e.getP999Micros (), e.getMaxMicros (),
+                    e.getRetries (), e.getAborts ());
+            }
+        }
+    }//end Metrics
+
+    Metrics metrics() {
+        return _metrics;
+    }
+
+    /**
+     * Registers the statistics with the platform MBean server. A failure
+     * only costs the JMX view, the statistics menu entry keeps working.
+     */
+    private void registerStatistics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+            ObjectName name = new ObjectName ("Ticketmaster:type=Statistics");
+            for (int i = 2; server.isRegistered (name); ++i)
+                name = new ObjectName ("Ticketmaster:type=Statistics,instance=" + i);
+            server.registerMBean (new StandardMBean (new StatisticsMXBean () {
+                public List<OperationStatistics> getOperations() {
+                    return _metrics.operations ();
+                }
+
+                public List<OperationStatistics> getStatements() {
+                    return _metrics.statements ();
+                }
+
+                public String getPoolStatistics() {
+                    return Ticketmaster.this.getPoolStatistics ();
+                }
+
+                public String getResultCacheStatistics() {
+                    return Ticketmaster.this.getResultCacheStatistics ();
+                }
+
+                public String getReplicaStatistics() {
+                    return _replicas.getStatistics ();
+                }
+
+                public String getStartup() {
+                    return STARTUP.toString ();
+                }
+
+                public void reset() {
+                    _metrics.reset ();
+                }
+            }, StatisticsMXBean.class, true), name);
+            _mbeanName = name;
+        } catch (Exception e) {
+            System.err.println ("Unable to register statistics with JMX: " + e.getMessage ());
+        }
+    }
+
+    /**
+     * LRU cache of listing query results, invalidated per table by a write
+     * generation that writing transactions bump again after their commit.
+     */
+    static class ResultCache {
+        //tables whose foreign keys cascade a delete or update into the listed tables
+        static final Map<String, String[]> CASCADES = new HashMap<String, String[]>();
+        static {
+            CASCADES.put ("movies", new String[] { "shows", "plays", "showseats", "bookings", "payments" });
+            CASCADES.put ("shows", new String[] { "plays", "showseats", "bookings", "payments" });
+            CASCADES.put ("bookings", new String[] { "showseats", "payments" });
+            CASCADES.put ("users", new String[] { "bookings", "showseats", "payments" });
+            CASCADES.put ("cinemas", new String[] { "theaters", "cinemaseats", "plays", "showseats" });
+            CASCADES.put ("theaters", new String[] { "cinemaseats", "plays", "showseats" });
+        }
+        //the leading keyword of a statement that writes, and its table
+        private static final Pattern WRITE =
+            Pattern.compile ("\\s*(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+(?:ONLY\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+        private static final Pattern WITH = Pattern.compile ("\\s*WITH\\s+(?:RECURSIVE\\s+)?", Pattern.CASE_INSENSITIVE);
+        //one common table expression up to the parenthesis opening its body
+        private static final Pattern CTE =
+            Pattern.compile ("\\s*\\w+\\s*(?:\\([^)]*\\)\\s*)?AS\\s+(?:NOT\\s+)?(?:MATERIALIZED\\s+)?\\(", Pattern.CASE_INSENSITIVE);
+
+        private final int maxEntries = Integer.getInteger ("ticketmaster.resultCache.maxEntries", 1024);
+        private final long ttlMillis = Long.getLong ("ticketmaster.resultCache.ttlMillis", 30000L);
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+        //tables written by each SQL template, parsed once
+        private final ConcurrentHashMap<String, String[]> writes = new ConcurrentHashMap<String, String[]>();
+
+        private final AtomicLong hits = new AtomicLong ();
+        private final AtomicLong misses = new AtomicLong ();
+        private final AtomicLong evictions = new AtomicLong ();
+        private final AtomicLong invalidations = new AtomicLong ();
+
+        static class Entry {
+            final ColumnarResult result;
+            final long expiresAt;
+            final String[] tables;
+            final long[] generations;
+
+            Entry(ColumnarResult result, long expiresAt, String[] tables, long[] generations) {
+                this.result = result;
+                this.expiresAt = expiresAt;
+                this.tables = tables;
+                this.generations = generations;
+            }
+        }
+
+        static String key(String query, Object[] params) {
+            StringBuilder key = new StringBuilder (query.trim ().replaceAll ("\\s+", " "));
+            for (Object param : params) key.append ('\u0000').append (param);
+            return key.toString ();
+        }
+
+        private AtomicLong generation(String table) {
+            String name = table.toLowerCase ();
+            AtomicLong generation = generations.get (name);
+            if (generation == null) {
+                generations.putIfAbsent (name, new AtomicLong ());
+                generation = generations.get (name);
+            }
+            return generation;
+        }
+
+        /**
+         * @return the current write generations of tables, captured before running the query
+         */
+        long[] generations(String[] tables) {
+            long[] result = new long[tables.length];
+            for (int i = 0; i < tables.length; ++i) result[i] = generation (tables[i]).get ();
+            return result;
+        }
+
+        synchronized ColumnarResult get(String key) {
+            Entry entry = entries.get (key);
+            if (entry != null) {
+                boolean valid = System.currentTimeMillis () < entry.expiresAt;
+                for (int i = 0; valid && i < entry.tables.length; ++i)
+                    valid = generation (entry.tables[i]).get () == entry.generations[i];
+                if (valid) {
+                    hits.incrementAndGet ();
+                    return entry.result;
+                }
+                entries.remove (key);
+            }
+            misses.incrementAndGet ();
+            return null;
+        }
+
+        synchronized void put(String key, String[] tables, long[] generations, ColumnarResult result) {
+            entries.put (key, new Entry (result, System.currentTimeMillis () + ttlMillis, tables, generations));
+            Iterator<Entry> it = entries.values ().iterator ();
+            while (entries.size () > maxEntries && it.hasNext ()) {
+                it.next ();
+                it.remove ();
+                evictions.incrementAndGet ();
+            }
+        }
+
+        /**
+         * @return the tables sql inserts into, updates, deletes from or
+         *         truncates, judged by its leading keyword and those of its
+         *         WITH queries; none for DDL and SELECT ... FOR UPDATE
+         */
+        String[] tablesWritten(String sql) {
+            String[] tables = writes.get (sql);
+            if (tables == null) {
+                List<String> found = new ArrayList<String>();
+                written (sql, found);
+                tables = found.toArray (new String[0]);
+                writes.put (sql, tables);
+            }
+            return tables;
+        }
+
+        /**
+         * Adds the tables written by the statement sql to found.
+         */
+        private static void written(String sql, List<String> found) {
+            int at = 0;
+            Matcher with = WITH.matcher (sql);
+            if (with.lookingAt ()) {
+                Matcher cte = CTE.matcher (sql);
+                at = with.end ();
+                while (cte.region (at, sql.length ()).lookingAt ()) {
+                    int end = closing (sql, cte.end () - 1);
+                    if (end < 0) return;
+                    written (sql.substring (cte.end (), end), found);
+                    at = end + 1;
+                    while (at < sql.length () && Character.isWhitespace (sql.charAt (at))) at++;
+                    if (at == sql.length () || sql.charAt (at) != ',') break;
+                    at++;
+                }
+            }
+            Matcher m = WRITE.matcher (sql).region (at, sql.length ());
+            if (m.lookingAt ()) found.add (m.group (1).toLowerCase ());
+        }
+
+        /**
+         * @return the index of the parenthesis closing the one at open,
+         *         skipping quoted text; -1 when there is none
+         */
+        private static int closing(String sql, int open) {
+            int depth = 0;
+            boolean quoted = false;
+            for (int i = open; i < sql.length (); ++i) {
+                char c = sql.charAt (i);
+                if (c == '\'') quoted = !quoted;
+                else if (quoted) continue;
+                else if (c == '(') depth++;
+                else if (c == ')' && --depth == 0) return i;
+            }
+            return -1;
+        }
+
+        void invalidate(String... tables) {
+            for (String table : tables) {
+                generation (table).incrementAndGet ();
+                invalidations.incrementAndGet ();
+                String[] cascades = CASCADES.get (table.toLowerCase ());
+                if (cascades != null) for (String child : cascades) generation (child).incrementAndGet ();
+            }
+        }
+
+        synchronized String getStatistics() {
+            long h = hits.get ();
+            long total = h + misses.get ();
+            return String.format ("%d entries (max %d, ttl %d ms), %d hits, %d misses (%.1f%% hit rate), %d evicted, %d table invalidations",
+                entries.size (), maxEntries, ttlMillis, h, misses.get (), total == 0 ? 0.0 : 100.0 * h / total,
+                evictions.get (), invalidations.get ());
+        }
+    }//end ResultCache
+
+    /**
+     * Append-only journal of committed mutations in memory-mapped segment files,
+     * enabled with -Dticketmaster.journal.dir and flushed to disk every
+     * -Dticketmaster.journal.flushMillis. A transaction's mutations and its
+     * COMMIT record are appended in commit order and never span two segments.
+     *
+     * Segment layout: int MAGIC, then records of int length, int crc32, body.
+     * A body is TEMPLATE (type, varint id, sql), MUTATION (type, varint template
+     * id, varlong rows, varint parameter count, parameters as a null flag and a
+     * string) or COMMIT (type, long epoch millis, null flag and now() text).
+     * Strings are a varint length and UTF-8; a zero length ends the segment.
+     */
+    static class Journal {
+        static final int MAGIC = 0x544d4a32; //TMJ2
+        static final byte TEMPLATE = 1;
+        static final byte MUTATION = 2;
+        static final byte COMMIT = 3;
+        static final Pattern NOW = Pattern.compile ("(?i)\\bnow\\s*\\(\\s*\\)");
+
+        /**
+         * One write of a transaction, queued in afterCommit so a rollback drops it;
+         * commit appends the queued mutations instead of running them.
+         */
+        static class Mutation implements Runnable {
+            final String sql;
+            final Object[] params;
+            final long rows;
+
+            Mutation(String sql, Object[] params, long rows) {
+                this.sql = sql;
+                this.params = params;
+                this.rows = rows;
+            }
+
+            public void run() {
+                //appended by commit
+            }
+        }
+
+        //held across a journaled commit and the append of its mutations
+        final Lock order = new ReentrantLock ();
+
+        private final File dir;
+        private final int segmentBytes;
+        private final Map<String, Integer> templates = new HashMap<String, Integer>();
+        private ByteBuffer scratch = ByteBuffer.allocate (4096);
+        private final CRC32 crc = new CRC32 ();
+        private FileChannel channel;
+        private MappedByteBuffer segment;
+        private long segmentNumber;
+        private volatile boolean dirty = false;
+        private volatile boolean closed = false;
+        private final AtomicLong records = new AtomicLong ();
+
+        Journal(File dir) throws IOException {
+            this.dir = dir;
+            this.segmentBytes = Integer.getInteger ("ticketmaster.journal.segmentBytes", 64 << 20);
+            if (!dir.isDirectory () && !dir.mkdirs ()) throw new IOException ("Unable to create " + dir);
+            File[] existing = segments (dir);
+            this.segmentNumber = existing.length == 0 ? 0 : Long.parseLong (existing[existing.length - 1].getName ().substring (8, 24));
+            roll ();
+
+            final long flushMillis = Long.getLong ("ticketmaster.journal.flushMillis", 10L);
+            Thread flusher = new Thread (new Runnable () {
+                public void run() {
+                    while (!closed) {
+                        try {
+                            Thread.sleep (flushMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        flush ();
+                    }
+                }
+            }, "ticketmaster-journal");
+            flusher.setDaemon (true);
+            flusher.start ();
+        }
+
+        static File[] segments(File dir) {
+            File[] files = dir.listFiles ();
+            if (files == null) return new File[0];
+            List<File> segments = new ArrayList<File>();
+            for (File file : files) if (file.getName ().matches ("journal-\\d{16}\\.seg")) segments.add (file);
+            File[] result = segments.toArray (new File[0]);
+            Arrays.sort (result);
+            return result;
+        }
+
+        private void roll() throws IOException {
+            if (segment != null) {
+                segment.force ();
+                channel.close ();
+            }
+            segmentNumber++;
+            File file = new File (dir, String.format ("journal-%016d.seg", segmentNumber));
+            channel = FileChannel.open (file.toPath (), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment = channel.map (FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            segment.putInt (MAGIC);
+            templates.clear ();
+        }
+
+        static boolean callsNow(List<Mutation> mutations) {
+            for (Mutation mutation : mutations) if (NOW.matcher (mutation.sql).find ()) return true;
+            return false;
+        }
+
+        /**
+         * Appends one committed transaction; the disk write happens on the flusher.
+         *
+         * @param now the transaction's now(), null when it did not call it
+         */
+        synchronized void append(List<Mutation> mutations, String now) throws IOException {
+            if (closed || mutations.isEmpty ()) return;
+            if (!writeTransaction (mutations, now)) {
+                //the segment is full, the whole transaction goes into the next one
+                roll ();
+                if (!writeTransaction (mutations, now)) throw new IOException ("Journal transaction of " + mutations.size () + " mutation(s) does not fit a segment");
+            }
+            records.addAndGet (mutations.size ());
+            dirty = true;
+        }
+
+        /**
+         * Writes the records of one transaction into the segment.
+         *
+         * @return false when they do not fit, leaving the segment unchanged
+         */
+        private boolean writeTransaction(List<Mutation> mutations, String now) throws IOException {
+            int mark = segment.position ();
+            List<String> defined = new ArrayList<String>();
+            boolean written = false;
+            try {
+                for (Mutation mutation : mutations) {
+                    Integer id = templates.get (mutation.sql);
+                    if (id == null) {
+                        id = templates.size ();
+                        scratch.clear ();
+                        scratch.put (TEMPLATE);
+                        putVarLong (id);
+                        putString (mutation.sql);
+                        if (!write ()) return false;
+                        templates.put (mutation.sql, id);
+                        defined.add (mutation.sql);
+                    }
+                    scratch.clear ();
+                    scratch.put (MUTATION);
+                    putVarLong (id);
+                    putVarLong (mutation.rows);
+                    putVarLong (mutation.params.length);
+                    for (Object param : mutation.params) {
+                        ensure (1);
+                        scratch.put ((byte) (param == null ? 0 : 1));
+                        if (param != null) putString (param.toString ());
+                    }
+                    if (!write ()) return false;
+                }
+                scratch.clear ();
+                scratch.put (COMMIT);
+                ensure (9);
+                scratch.putLong (System.currentTimeMillis ());
+                scratch.put ((byte) (now == null ? 0 : 1));
+                if (now != null) putString (now);
+                written = write ();
+                return written;
+            } finally {
+                if (!written) {
+                    //take the partial transaction back; the zero length ends the segment there again
+                    segment.putInt (mark, 0);
+                    segment.position (mark);
+                    for (String sql : defined) templates.remove (sql);
+                }
+            }
+        }
+
+        /**
+         * Copies the record in scratch into the segment.
+         *
+         * @return false when it does not fit, leaving the segment unchanged
+         */
+        private boolean write() throws IOException {
+            scratch.flip ();
+            int length = scratch.remaining ();
+            if (length + 8 > segmentBytes - 4) throw new IOException ("Journal record of " + length + " bytes does not fit a segment");
+            //keep room for the zero length that ends the segment
+            if (segment.remaining () < length + 8 + 4) return false;
+            crc.reset ();
+            crc.update (scratch.array (), 0, length);
+            segment.putInt (length);
+            segment.putInt ((int) crc.getValue ());
+            segment.put (scratch);
+            return true;
+        }
+
+        private void ensure(int bytes) {
+            if (scratch.remaining () >= bytes) return;
+            ByteBuffer bigger = ByteBuffer.allocate (Math.max (scratch.capacity () * 2, scratch.position () + bytes));
+            scratch.flip ();
+            bigger.put (scratch);
+            scratch = bigger;
+        }
+
+        private void putVarLong(long value) {
+            ensure (10);
+            while ((value & ~0x7fL) != 0) {
+                scratch.put ((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            scratch.put ((byte) value);
+        }
+
+        private void putString(String value) {
+            byte[] bytes = value.getBytes (StandardCharsets.UTF_8);
+            putVarLong (bytes.length);
+            ensure (bytes.length);
+            scratch.put (bytes);
+        }
+
+        /**
+         * Forces the records appended since the last flush to disk.
+         */
+        void flush() {
+            if (!dirty) return;
+            MappedByteBuffer current;
+            synchronized (this) {
+                dirty = false;
+                current = segment;
+            }
+            current.force ();
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            segment.force ();
+            try {
+                channel.close ();
+            } catch (IOException e) {
+                // ignored.
+            }
+        }
+
+        long records() {
+            return records.get ();
+        }
+
+        /**
+         * Receives the transactions read back by read.
+         */
+        interface Visitor {
+            /**
+             * @param timeMillis when the transaction was journaled
+             * @param now the transaction's now(), null when it did not call it
+             */
+            void transaction(long timeMillis, String now, List<Mutation> mutations) throws SQLException;
+        }
+
+        static long getVarLong(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get ();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        static String getString(ByteBuffer in) {
+            byte[] bytes = new byte[(int) getVarLong (in)];
+            in.get (bytes);
+            return new String (bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Passes the transactions in dir to visitor, skipping the incomplete ones.
+         *
+         * @return the number of mutations read
+         */
+        static long read(File dir, PrintStream report, Visitor visitor) throws IOException, SQLException {
+            long count = 0;
+            for (File file : segments (dir)) {
+                FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.READ);
+                try {
+                    ByteBuffer in = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+                    if (in.remaining () < 4 || in.getInt () != MAGIC) {
+                        report.println ("Skipping " + file.getName () + ": not a journal segment");
+                        continue;
+                    }
+                    Map<Long, String> templates = new HashMap<Long, String>();
+                    List<Mutation> pending = new ArrayList<Mutation>();
+                    CRC32 crc = new CRC32 ();
+                    while (in.remaining () >= 8) {
+                        int length = in.getInt ();
+                        int checksum = in.getInt ();
+                        if (length == 0) break;
+                        if (length < 0 || length > in.remaining ()) {
+                            report.println (file.getName () + ": damaged record at " + (in.position () - 8));
+                            break;
+                        }
+                        ByteBuffer body = in.slice ();
+                        body.limit (length);
+                        in.position (in.position () + length);
+                        crc.reset ();
+                        crc.update (body.duplicate ());
+                        if ((int) crc.getValue () != checksum) {
+                            report.println (file.getName () + ": checksum mismatch at " + (in.position () - length - 8));
+                            break;
+                        }
+                        byte type = body.get ();
+                        if (type == TEMPLATE) {
+                            long id = getVarLong (body);
+                            templates.put (id, getString (body));
+                        } else if (type == MUTATION) {
+                            String sql = templates.get (getVarLong (body));
+                            long rows = getVarLong (body);
+                            String[] params = new String[(int) getVarLong (body)];
+                            for (int i = 0; i < params.length; ++i) params[i] = body.get () == 0 ? null : getString (body);
+                            pending.add (new Mutation (sql, params, rows));
+                        } else if (type == COMMIT) {
+                            long time = body.getLong ();
+                            String now = body.get () == 0 ? null : getString (body);
+                            visitor.transaction (time, now, pending);
+                            count += pending.size ();
+                            pending = new ArrayList<Mutation>();
+                        }
+                    }
+                    if (!pending.isEmpty ())
+                        report.println (file.getName () + ": skipping " + pending.size () + " mutation(s) of a transaction that was not journaled completely");
+                } finally {
+                    channel.close ();
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Prints every mutation in dir, one per line, and a COMMIT line after
+         * the mutations of each transaction.
+         */
+        static long dump(File dir, final PrintStream out) throws IOException, SQLException {
+            return read (dir, out, new Visitor () {
+                public void transaction(long timeMillis, String now, List<Mutation> mutations) {
+                    for (Mutation mutation : mutations)
+                        out.println (mutation.rows + "\t" + mutation.sql.replaceAll ("\\s+", " ") + "\t" + Arrays.toString (mutation.params));
+                    out.println ("COMMIT\t" + new java.sql.Timestamp (timeMillis) + (now == null ? "" : "\tnow() = " + now));
+                }
+            });
+        }
+
+        /**
+         * Runs every transaction in dir again, each as one transaction, with now()
+         * replaced by the recorded time and journaling turned off.
+         */
+        static long replay(File dir, final Ticketmaster esql, PrintStream report) throws IOException, SQLException {
+            Journal journal = esql._journal;
+            esql._journal = null;
+            try {
+                return read (dir, report, new Visitor () {
+                    public void transaction(long timeMillis, String now, final List<Mutation> mutations) throws SQLException {
+                        final String time = now == null ? null : Matcher.quoteReplacement ("('" + now + "'::timestamptz)");
+                        esql.runInTransaction (new SessionWork<Void>() {
+                            public Void run() throws SQLException {
+                                for (Mutation mutation : mutations) {
+                                    String sql = time == null ? mutation.sql : NOW.matcher (mutation.sql).replaceAll (time);
+                                    //CTEs and RETURNING statements come back with rows
+                                    if (sql.trim ().toUpperCase ().startsWith ("WITH") || sql.toUpperCase ().contains ("RETURNING")) {
+                                        esql.executeQueryAndReturnColumns (sql, mutation.params);
+                                    } else {
+                                        esql.executeUpdate (sql, mutation.params);
+                                    }
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                });
+            } finally {
+                esql._journal = journal;
+            }
+        }
+    }//end Journal
+
+    /**
+     * An afterCommit hook that marks one table as changed in the result cache.
+     */
+    static class TableInvalidation implements Runnable {
+        final ResultCache cache;
+        final String table;
+        //index of this hook in afterCommit; hooks are only ever dropped from the end
+        final int position;
+
+        TableInvalidation(ResultCache cache, String table, int position) {
+            this.cache = cache;
+            this.table = table;
+            this.position = position;
+        }
+
+        boolean queuedIn(List<Runnable> hooks) {
+            return position < hooks.size () && hooks.get (position) == this;
+        }
+
+        public void run() {
+            cache.invalidate (table);
+        }
+    }
+
+    /**
+     * Invalidates the tables written by sql and, inside a transaction, queues
+     * their post-commit invalidation and the journal mutation.
+     *
+     * @param rows the rows affected or returned
+     */
+    private void written(final String sql, final Object[] params, final long rows) {
+        String[] tables = _results.tablesWritten (sql);
+        if (tables.length == 0) return;
+        _results.invalidate (tables);
+        PooledConnection session = _session.get ();
+        if (inTransaction (session)) {
+            for (String table : tables) {
+                TableInvalidation hook = session.invalidations.get (table);
+                if (hook != null && hook.queuedIn (session.afterCommit)) continue;
+                hook = new TableInvalidation (_results, table, session.afterCommit.size ());
+                session.invalidations.put (table, hook);
+                session.afterCommit.add (hook);
+            }
+        }
+        if (_replicas.enabled ()) {
+            final String client = _replicas.client ();
+            afterCommit (new Runnable() {
+                public void run() {
+                    _replicas.committed (client);
+                }
+            });
+        }
+        //journaled writes always run in a transaction, see journaledAlone; imports journal their rows
+        if (_journal != null && inTransaction (session) && !CatalogLoader.staged (sql)) session.afterCommit.add (new Journal.Mutation (sql, params, rows));
+    }
+
+    /**
+     * @return whether sql is a journaled write about to commit on its own;
+     *         such a write runs as a short transaction, so it reaches the
+     *         journal through commit like any other
+     */
+    private boolean journaledAlone(String sql) {
+        return _journal != null && !inTransaction (_session.get ()) && _results.tablesWritten (sql).length > 0 && !CatalogLoader.staged (sql);
+    }
+
+    boolean journaling() {
+        return _journal != null;
+    }
+
+    /**
+     * Journals sql once per row of rows, bound to the values of that row,
+     * as writes of the open transaction.
+     */
+    void journal(String sql, ColumnarResult rows) {
+        PooledConnection session = _session.get ();
+        if (_journal == null || !inTransaction (session)) return;
+        for (int row = 0; row < rows.rowCount (); ++row) {
+            Object[] params = new Object[rows.columnCount ()];
+            for (int col = 0; col < params.length; ++col) params[col] = rows.isNull (row, col) ? null : rows.getString (row, col);
+            session.afterCommit.add (new Journal.Mutation (sql, params, 1));
+        }
+    }
+
+    public String getResultCacheStatistics() {
+        return _results.getStatistics ();
+    }
+
+    /**
+     * Method to execute a read-only query through the result cache.
+     *
+     * @param tables every table query reads from, used for invalidation
+     * @param query the input query string, using ? for parameters
+     * @param params the values bound to the parameters of query
+     * @return the query result, possibly shared with other callers
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ColumnarResult executeCachedQuery (String[] tables, String query, Object... params) throws SQLException {
+        String key = ResultCache.key (query, params);
+        ColumnarResult result = _results.get (key);
+        if (result != null) return result;
+        long[] generations = _results.generations (tables);
+        ReplicaRouter.Replica replica = readReplica ();
+        //a standby behind the last commit of any client must not fill the shared cache
+        boolean current = replica == null || replica.caughtUpTo >= _replicas.lastCommit ();
+        result = executeReadQuery (replica, query, params);
+        if (current) _results.put (key, tables, generations, result);
+        return result;
+    }
+
+    /**
+     * One page of a query read with executeQueryPage.
+     */
+    public static class Page {
+        private final ColumnarResult result;
+        private final int size;
+        private final String nextToken;
+
+        Page(ColumnarResult result, int size, String nextToken) {
+            this.result = result;
+            this.size = size;
+            this.nextToken = nextToken;
+        }
+
+        /**
+         * @return the rows of this page; the result may hold one more row
+         *         that belongs to the next page
+         */
+        public ColumnarResult result() {
+            return result;
+        }
+
+        public int rowCount() {
+            return size;
+        }
+
+        public List<List<String>> asRows() {
+            return result.asRows ().subList (0, size);
+        }
+
+        public void print(PrintWriter out) {
+            result.print (out, size);
+        }
+
+        /**
+         * @return the token that continues after this page, or null on the last page
+         */
+        public String nextToken() {
+            return nextToken;
+        }
+    }
+
+    /**
+     * Reads one page of query with keyset pagination.
+     *
+     * @param tables the tables query reads from, null to bypass the result cache
+     * @param query the input query; its output must contain the key columns
+     * @param keys the output columns of query to order and seek by
+     * @param pageSize the maximum number of rows on the page
+     * @param token null for the first page, else nextToken of the previous page
+     * @param params the values bound to the parameters of query
+     * @return the page
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public Page executeQueryPage (String[] tables, String query, String[] keys, int pageSize, String token, Object... params) throws SQLException {
+        StringBuilder keyList = new StringBuilder ();
+        for (String key : keys) keyList.append (keyList.length () == 0 ? "" : ", ").append ("page.").append (key);
+        List<Object> values = new ArrayList<Object>(Arrays.asList (params));
+        StringBuilder sql = new StringBuilder ("SELECT * FROM (").append (query).append (") page");
+        if (token != null) {
+            String[] after = decodePageToken (token, keys.length);
+            sql.append (" WHERE (").append (keyList).append (") > (");
+            for (int i = 0; i < after.length; ++i) {
+                sql.append (i == 0 ? "?" : ", ?");
+                values.add (after[i]);
+            }
+            sql.append (')');
+        }
+        //one extra row tells whether there is a next page
+        sql.append (" ORDER BY ").append (keyList).append (" LIMIT ").append (pageSize + 1);
+
+        ColumnarResult result = tables == null
+            ? executeReadQuery (readReplica (), sql.toString (), values.toArray ())
+            : executeCachedQuery (tables, sql.toString (), values.toArray ());
+        if (result.rowCount () <= pageSize) return new Page (result, result.rowCount (), null);
+
+        String[] last = new String[keys.length];
+        for (int i = 0; i < keys.length; ++i) last[i] = result.getString (pageSize - 1, result.findColumn (keys[i]));
+        return new Page (result, pageSize, encodePageToken (last));
+    }
+
+    static String encodePageToken(String[] values) {
+        StringBuilder joined = new StringBuilder ();
+        for (int i = 0; i < values.length; ++i) joined.append (i == 0 ? "" : "\u0000").append (values[i]);
+        return Base64.getUrlEncoder ().withoutPadding ().encodeToString (joined.toString ().getBytes (StandardCharsets.UTF_8));
+    }
+
+    static String[] decodePageToken(String token, int keys) throws SQLException {
+        try {
+            String[] values = new String (Base64.getUrlDecoder ().decode (token), StandardCharsets.UTF_8).split ("\u0000", -1);
+            if (values.length == keys) return values;
+        } catch (IllegalArgumentException e) {
+            // reported below.
+        }
+        throw new SQLException ("Invalid page token");
+    }
+
+    /**
+     * Runs work without recording its statements in the statistics.
+     */
+    <T> T unmeasured(SessionWork<T> work) throws SQLException {
+        boolean outer = Metrics.unmeasured.get() != null;
+        Metrics.unmeasured.set(Boolean.TRUE);
+        try {
+            return work.run();
+        } finally {
+            if (!outer) Metrics.unmeasured.remove();
+        }
+    }
+
+    /**
+     * A unit of work run by runOnSession.
+     */
+    public interface SessionWork<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Runs work with one pooled connection pinned to the current thread, so
+     * session state such as currval is shared.
+     *
+     * @param work the calls to run on a single session
+     * @return the value returned by work
+     * @throws java.sql.SQLException when work failed
+     */
+    public <T> T runOnSession(SessionWork<T> work) throws SQLException {
+        if (_session.get() != null) return work.run();
+        PooledConnection conn = pool ().borrow ();
+        _session.set (conn);
+        try {
+            return work.run ();
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            _session.remove ();
+            _pool.release (conn);
+        }
+    }
+
+    //isolation level of the transactions run by runInTransaction
+    static final String ISOLATION = isolationLevel (System.getProperty ("ticketmaster.tx.isolation", "SERIALIZABLE"));
+    static final int MAX_RETRIES = Integer.getInteger ("ticketmaster.tx.maxRetries", 5);
+    static final long BACKOFF_MILLIS = Long.getLong ("ticketmaster.tx.backoffMillis", 5L);
+    static final long MAX_BACKOFF_MILLIS = Long.getLong ("ticketmaster.tx.maxBackoffMillis", 500L);
+
+    /**
+     * @return the SQL name of the isolation level name, e.g. REPEATABLE READ
+     *         for repeatable_read; SERIALIZABLE when it is not one
+     */
+    static String isolationLevel(String name) {
+        String level = name.trim ().toUpperCase ().replace ('_', ' ');
+        if (level.equals ("READ COMMITTED") || level.equals ("REPEATABLE READ") || level.equals ("SERIALIZABLE")) return level;
+        System.err.println ("Unknown isolation level " + name + ", using SERIALIZABLE");
+        return "SERIALIZABLE";
+    }
+
+    /**
+     * @return whether e, or an exception chained to it, is a serialization
+     *         failure or deadlock, after which the transaction can simply be rerun
+     */
+    static boolean isRetryable(SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException ()) {
+            for (Throwable cause = next; cause != null; cause = cause.getCause ()) {
+                if (cause instanceof SQLException) {
+                    String state = ((SQLException) cause).getSQLState ();
+                    if ("40001".equals (state) || "40P01".equals (state)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs work as one transaction at -Dticketmaster.tx.isolation (SERIALIZABLE
+     * by default), retried on serialization failures and deadlocks up to
+     * -Dticketmaster.tx.maxRetries times. Nested calls join the outer transaction.
+     *
+     * @param work the statements to run atomically
+     * @return the value returned by work
+     * @throws java.sql.SQLException when work failed; nothing was committed
+     */
+    public <T> T runInTransaction(final SessionWork<T> work) throws SQLException {
+        return runInTransaction (ISOLATION, work);
+    }
+
+    /**
+     * Same as runInTransaction(work), at the given isolation level.
+     *
+     * @param isolation READ COMMITTED, REPEATABLE READ or SERIALIZABLE
+     */
+    public <T> T runInTransaction(final String isolation, final SessionWork<T> work) throws SQLException {
+        return runOnSession (new SessionWork<T>() {
+            public T run() throws SQLException {
+                PooledConnection session = _session.get ();
+                Connection conn = session.conn;
+                if (!conn.getAutoCommit ()) return session.savepoints ? runInSavepoint (session, work) : work.run ();
+                for (int attempt = 0; ; ++attempt) {
+                    int errors = session.errors;
+                    long failed = Metrics.errors ();
+                    try {
+                        return runAttempt (session, isolation, work);
+                    } catch (SQLException e) {
+                        if (!isRetryable (e)) throw e;
+                        if (attempt >= MAX_RETRIES) {
+                            Metrics.aborted ();
+                            throw e;
+                        }
+                        //the retry decides whether the operation failed
+                        session.errors = errors;
+                        Metrics.retried (failed);
+                    }
+                    try {
+                        long bound = Math.min (MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min (attempt, 20));
+                        Thread.sleep (ThreadLocalRandom.current ().nextLong (bound + 1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread ().interrupt ();
+                        throw new SQLException ("Interrupted while retrying a transaction", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs one attempt of a transaction on session, which is in autocommit mode.
+     */
+    private <T> T runAttempt(PooledConnection session, String isolation, SessionWork<T> work) throws SQLException {
+        Connection conn = session.conn;
+        conn.setAutoCommit (false);
+        boolean committed = false;
+        try {
+            //READ COMMITTED is the server default, the other levels cost one statement
+            if (!isolation.equals ("READ COMMITTED")) executeUpdate ("SET TRANSACTION ISOLATION LEVEL " + isolation);
+            T result = work.run ();
+            commit (session);
+            committed = true;
+            return result;
+        } finally {
+            try {
+                if (!committed) conn.rollback ();
+                conn.setAutoCommit (true);
+            } catch (SQLException e) {
+                session.broken = true;
+            }
+            session.afterCommit.clear ();
+        }
+    }
+
+    /**
+     * Runs work inside a savepoint of the open transaction, so a failure of
+     * work only undoes its own statements.
+     */
+    private static <T> T runInSavepoint(PooledConnection session, SessionWork<T> work) throws SQLException {
+        Savepoint savepoint = session.conn.setSavepoint ();
+        int hooks = session.afterCommit.size ();
+        try {
+            T result = work.run ();
+            session.conn.releaseSavepoint (savepoint);
+            return result;
+        } catch (SQLException e) {
+            if (isRetryable (e)) session.retry = e;
+            rollback (session, savepoint, hooks);
+            throw e;
+        } catch (RuntimeException e) {
+            rollback (session, savepoint, hooks);
+            throw e;
+        }
+    }
+
+    /**
+     * Rolls the open transaction of session back to savepoint and drops the
+     * afterCommit hooks registered since.
+     */
+    private static void rollback(PooledConnection session, Savepoint savepoint, int hooks) throws SQLException {
+        session.errors++;
+        session.conn.rollback (savepoint);
+        session.afterCommit.subList (hooks, session.afterCommit.size ()).clear ();
+    }
+
+    /**
+     * Commits the open transaction of session, journals its mutations and
+     * runs its afterCommit hooks.
+     */
+    private void commit(PooledConnection session) throws SQLException {
+        Metrics.roundTrip ();
+        List<Journal.Mutation> mutations = new ArrayList<Journal.Mutation>();
+        for (Runnable hook : session.afterCommit) if (hook instanceof Journal.Mutation) mutations.add ((Journal.Mutation) hook);
+        Journal journal = _journal;
+        if (journal == null || mutations.isEmpty ()) {
+            session.conn.commit ();
+        } else {
+            String now = null;
+            if (Journal.callsNow (mutations)) {
+                //the same for every statement of the transaction
+                ResultSet rs = session.statements.prepare ("SELECT now()::text").executeQuery ();
+                rs.next ();
+                now = rs.getString (1);
+                rs.close ();
+            }
+            //one ordering point, so the journal holds transactions in commit order
+            journal.order.lock ();
+            try {
+                session.conn.commit ();
+                try {
+                    journal.append (mutations, now);
+                } catch (IOException e) {
+                    System.err.println ("Unable to journal a transaction: " + e.getMessage ());
+                }
+            } finally {
+                journal.order.unlock ();
+            }
+        }
+        List<Runnable> hooks = new ArrayList<Runnable>(session.afterCommit);
+        session.afterCommit.clear ();
+        for (Runnable hook : hooks) hook.run ();
+    }
+
+    /**
+     * @return whether session is inside a transaction; false for null and
+     *         for a connection that is gone
+     */
+    private static boolean inTransaction(PooledConnection session) {
+        try {
+            return session != null && !session.conn.getAutoCommit ();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs hook once the current transaction commits, or right away outside
+     * a transaction. Hooks of a transaction that rolls back are dropped.
+     *
+     * @param hook the work to run after the commit
+     */
+    public void afterCommit(Runnable hook) {
+        PooledConnection session = _session.get ();
+        if (inTransaction (session)) {
+            session.afterCommit.add (hook);
+            return;
+        }
+        hook.run ();
+    }
+
+    public SeatIndex seatIndex() {
+        return _seats;
+    }
+
+    /**
+     * In-memory seat availability, one bitmap per show, kept current by our own
+     * commits and by NOTIFY from other clients.
+     */
+    public static class SeatIndex {
+        static final String CHANNEL = "showseats_changed";
+        static final String LOAD =
+            "SELECT ss.ssid, CASE WHEN ss.bid IS NULL THEN 1 ELSE 0 END, cs.tid, ss.price " +
+            "FROM ShowSeats ss LEFT JOIN CinemaSeats cs ON cs.csid = ss.csid WHERE ss.sid = ? ORDER BY ss.ssid";
+
+        private final Ticketmaster esql;
+        private final ConcurrentHashMap<String, ShowSeatMap> shows = new ConcurrentHashMap<String, ShowSeatMap>();
+        //when each show was last invalidated, so a load racing an invalidation is not kept
+        private final ConcurrentHashMap<String, Long> invalidated = new ConcurrentHashMap<String, Long>();
+        //when every show was last invalidated at once, likewise
+        private volatile long allInvalidated = Long.MIN_VALUE;
+        private final long ttlMillis = Long.getLong("ticketmaster.seatIndex.ttlMillis", 2000L);
+        private final long listeningTtlMillis = Long.getLong("ticketmaster.seatIndex.listeningTtlMillis", 600000L);
+        private volatile boolean listening = false;
+        private volatile boolean stopped = false;
+
+        SeatIndex(Ticketmaster esql) {
+            this.esql = esql;
+        }
+
+        /**
+         * Seat bitmap of one show. Offsets follow the ascending ssid order.
+         */
+        static class ShowSeatMap {
+            final long[] ssids;
+            final BitSet free;
+            //bucket of each seat, and the free seats of each (theater, price) bucket
+            final int[] bucketOf;
+            final BitSet[] bucketFree;
+            final Map<String, Integer> buckets;
+            final long loadedAt = System.currentTimeMillis();
+
+            ShowSeatMap(long[] ssids, BitSet free, int[] bucketOf, Map<String, Integer> buckets) {
+                this.ssids = ssids;
+                this.free = free;
+                this.bucketOf = bucketOf;
+                this.buckets = buckets;
+                this.bucketFree = new BitSet[buckets.size()];
+                for (int b = 0; b < bucketFree.length; ++b) bucketFree[b] = new BitSet(ssids.length);
+                for (int bit = free.nextSetBit(0); bit >= 0; bit = free.nextSetBit(bit + 1))
+                    bucketFree[bucketOf[bit]].set(bit);
+            }
+
+            static String bucketKey(String tid, String price) {
+                return tid + "/" + price;
+            }
+
+            int offset(long ssid) {
+                return Arrays.binarySearch(ssids, ssid);
+            }
+
+            synchronized boolean isFree(long ssid) {
+                int bit = offset(ssid);
+                return bit >= 0 && free.get(bit);
+            }
+
+            synchronized void set(long ssid, boolean isFree) {
+                int bit = offset(ssid);
+                if (bit < 0) return;
+                free.set(bit, isFree);
+                bucketFree[bucketOf[bit]].set(bit, isFree);
+            }
+
+            synchronized long[] freeSeats() {
+                return seats(free);
+            }
+
+            /**
+             * @return the free seats in the same theater and at the same price as ssid
+             */
+            synchronized long[] freeSeatsLike(long ssid) {
+                int bit = offset(ssid);
+                return bit < 0 ? new long[0] : seats(bucketFree[bucketOf[bit]]);
+            }
+
+            /**
+             * @return the free seats in bucket (tid, price), none for an unknown bucket
+             */
+            synchronized long[] freeSeatsIn(String tid, String price) {
+                Integer bucket = buckets.get(bucketKey(tid, price));
+                return bucket == null ? new long[0] : seats(bucketFree[bucket]);
+            }
+
+            private long[] seats(BitSet bits) {
+                long[] result = new long[bits.cardinality()];
+                int k = 0;
+                for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1))
+                    result[k++] = ssids[bit];
+                return result;
+            }
+        }
+
+        /**
+         * Normalizes a show id so "007" from a prompt and "7" from a notification match.
+         */
+        static String key(String sid) {
+            String trimmed = sid.trim();
+            try {
+                return Long.toString(Long.parseLong(trimmed));
+            } catch (NumberFormatException e) {
+                return trimmed;
+            }
+        }
+
+        /**
+         * @return the bitmap of show sid, loading it when missing or stale
+         */
+        ShowSeatMap get(String sid) throws SQLException {
+            String key = key(sid);
+            ShowSeatMap map = shows.get(key);
+            long ttl = listening ? listeningTtlMillis : ttlMillis;
+            if (map != null && System.currentTimeMillis() - map.loadedAt <= ttl) return map;
+
+            long started = System.nanoTime();
+            ColumnarResult rows = esql.executeQueryAndReturnColumns(LOAD, sid);
+            long[] ssids = new long[rows.rowCount()];
+            BitSet free = new BitSet(ssids.length);
+            int[] bucketOf = new int[ssids.length];
+            Map<String, Integer> buckets = new HashMap<String, Integer>();
+            for (int i = 0; i < ssids.length; ++i) {
+                ssids[i] = rows.getLong(i, 0);
+                free.set(i, rows.getInt(i, 1) == 1);
+                String bucketKey = ShowSeatMap.bucketKey(rows.getString(i, 2), rows.getString(i, 3));
+                Integer bucket = buckets.get(bucketKey);
+                if (bucket == null) {
+                    bucket = buckets.size();
+                    buckets.put(bucketKey, bucket);
+                }
+                bucketOf[i] = bucket;
+            }
+            map = new ShowSeatMap(ssids, free, bucketOf, buckets);
+            Long lastInvalidated = invalidated.get(key);
+            if ((lastInvalidated == null || lastInvalidated < started) && allInvalidated < started) {
+                shows.put(key, map);
+                //an invalidation may have slipped in between the check and the put
+                if (allInvalidated >= started) shows.remove(key, map);
+            }
+            return map;
+        }
+
+        /**
+         * @param sid the show to look at
+         * @return the free ShowSeats ids of show sid, in ascending order
+         * @throws java.sql.SQLException when the show had to be loaded and that failed
+         */
+        public long[] freeSeats(String sid) throws SQLException {
+            return get(sid).freeSeats();
+        }
+
+        /**
+         * @param sid the show of the booked seat
+         * @param ssid the booked seat
+         * @return the free seats of show sid in the same theater and at the
+         *         same price as ssid, in ascending order
+         * @throws java.sql.SQLException when the show had to be loaded and that failed
+         */
+        public long[] swapCandidates(String sid, long ssid) throws SQLException {
+            return get(sid).freeSeatsLike(ssid);
+        }
+
+        /**
+         * @return true when ssid is a seat of show sid and is free
+         */
+        public boolean isFree(String sid, long ssid) throws SQLException {
+            return get(sid).isFree(ssid);
+        }
+
+        /**
+         * Applies a committed change of our own to a show already in the index.
+         *
+         * @param sid the show the seats belong to
+         * @param ssids the seats that changed
+         * @param isFree whether the seats are now free
+         */
+        public void update(String sid, List<String> ssids, boolean isFree) {
+            ShowSeatMap map = shows.get(key(sid));
+            if (map == null) return;
+            try {
+                for (String ssid : ssids) map.set(Long.parseLong(ssid.trim()), isFree);
+            } catch (NumberFormatException e) {
+                invalidate(sid);
+            }
+        }
+
+        /**
+         * Drops show sid, it is reloaded on its next use.
+         */
+        public void invalidate(String sid) {
+            String key = key(sid);
+            invalidated.put(key, System.nanoTime());
+            shows.remove(key);
+        }
+
+        /**
+         * Drops every show.
+         */
+        public void invalidateAll() {
+            //covers the shows being loaded right now, which are not in the map yet
+            allInvalidated = System.nanoTime();
+            shows.clear();
+        }
+
+        /**
+         * Installs the trigger that announces ShowSeats changes on CHANNEL.
+         * Needs the privilege to create functions and triggers on ShowSeats.
+         */
+        public void installTriggers() throws SQLException {
+            esql.executeUpdate(
+                "CREATE OR REPLACE FUNCTION ticketmaster_showseats_notify() RETURNS trigger AS $$ " +
+                "BEGIN " +
+                "  IF TG_OP = 'TRUNCATE' THEN PERFORM pg_notify('" + CHANNEL + "', '*'); " +
+                "  ELSIF TG_OP = 'DELETE' THEN PERFORM pg_notify('" + CHANNEL + "', OLD.sid::text); " +
+                "  ELSE " +
+                "    PERFORM pg_notify('" + CHANNEL + "', NEW.sid::text); " +
+                "    IF TG_OP = 'UPDATE' AND OLD.sid IS DISTINCT FROM NEW.sid THEN " +
+                "      PERFORM pg_notify('" + CHANNEL + "', OLD.sid::text); " +
+                "    END IF; " +
+                "  END IF; " +
+                "  RETURN NULL; " +
+                "END $$ LANGUAGE plpgsql");
+            esql.executeUpdate("DROP TRIGGER IF EXISTS ticketmaster_showseats_notify ON ShowSeats");
+            esql.executeUpdate("DROP TRIGGER IF EXISTS ticketmaster_showseats_truncate ON ShowSeats");
+            esql.executeUpdate("CREATE TRIGGER ticketmaster_showseats_notify AFTER INSERT OR UPDATE OR DELETE ON ShowSeats " +
+                "FOR EACH ROW EXECUTE PROCEDURE ticketmaster_showseats_notify()");
+            esql.executeUpdate("CREATE TRIGGER ticketmaster_showseats_truncate AFTER TRUNCATE ON ShowSeats " +
+                "FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_showseats_notify()");
+        }
+
+        /**
+         * Installs the trigger when -Dticketmaster.seatIndex.installTriggers=true
+         * and starts the notification listener thread.
+         */
+        void start() {
+            if (Boolean.getBoolean("ticketmaster.seatIndex.installTriggers")) {
+                try {
+                    installTriggers();
+                } catch (SQLException e) {
+                    System.err.println("Unable to install the ShowSeats trigger: " + e.getMessage());
+                }
+            }
+            Thread listener = new Thread(new Runnable() {
+                public void run() {
+                    listen();
+                }
+            }, "ticketmaster-seat-listener");
+            listener.setDaemon(true);
+            listener.start();
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        private void listen() {
+            while (!stopped) {
+                Connection conn = null;
+                try {
+                    conn = esql._pool.openUnpooled();
+                    Statement stmt = conn.createStatement();
+                    stmt.execute("LISTEN " + CHANNEL);
+                    stmt.close();
+                    PGConnection pg = conn.unwrap(PGConnection.class);
+                    //anything cached before listening started may already be stale
+                    invalidateAll();
+                    listening = true;
+                    while (!stopped) {
+                        PGNotification[] notifications = pg.getNotifications(1000);
+                        if (notifications == null) continue;
+                        for (PGNotification n : notifications) {
+                            if (esql._pool.backendPids.contains(n.getPID())) continue;
+                            if ("*".equals(n.getParameter())) invalidateAll();
+                            else invalidate(n.getParameter());
+                        }
+                    }
+                } catch (SQLException e) {
+                    listening = false;
+                    invalidateAll();
+                } finally {
+                    listening = false;
+                    if (conn != null) {
+                        try {
+                            conn.close();
+                        } catch (SQLException e) {
+                            // ignored.
+                        }
+                    }
+                }
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }//end SeatIndex
+
+    public UserDirectory userDirectory() {
+        return _users;
+    }
+
+    /**
+     * Bloom filter over Users.email, rebuilt every -Dticketmaster.users.rebuildMillis.
+     * Only its "no" is definite; "yes" and "maybe" are checked against the database.
+     */
+    public static class UserDirectory {
+        public enum Answer { NO, YES, MAYBE }
+
+        private final Ticketmaster esql;
+        private final long rebuildMillis = Long.getLong("ticketmaster.users.rebuildMillis", 300000L);
+        private final double falsePositiveRate = Double.parseDouble(System.getProperty("ticketmaster.users.falsePositiveRate", "0.01"));
+        private final int knownCapacity = Integer.getInteger("ticketmaster.users.knownCapacity", 4096);
+        private volatile BloomFilter filter;
+        //emails added while a rebuild is reading the table
+        private List<String> addedDuringRebuild;
+        private final LinkedHashMap<String, Boolean> known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > knownCapacity;
+            }
+        };
+        private final AtomicLong no = new AtomicLong();
+        private final AtomicLong yes = new AtomicLong();
+        private final AtomicLong maybe = new AtomicLong();
+        private volatile boolean stopped = false;
+
+        UserDirectory(Ticketmaster esql) {
+            this.esql = esql;
+        }
+
+        /**
+         * Fixed size Bloom filter. Bits are set atomically, so adds and
+         * lookups need no lock.
+         */
+        static class BloomFilter {
+            final AtomicLongArray bits;
+            final long size;
+            final int hashes;
+
+            BloomFilter(long expected, double falsePositiveRate) {
+                long n = Math.max(1024, expected);
+                long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+                this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (m + 63) / 64));
+                this.size = bits.length() * 64L;
+                this.hashes = Math.max(1, (int) Math.round((double) size / n * Math.log(2)));
+            }
+
+            static long hash(String value) {
+                //FNV-1a over the chars, finished with the splitmix64 mixer
+                long h = 0xcbf29ce484222325L;
+                for (int i = 0; i < value.length(); ++i) {
+                    h ^= value.charAt(i);
+                    h *= 0x100000001b3L;
+                }
+                h ^= h >>> 30;
+                h *= 0xbf58476d1ce4e5b9L;
+                h ^= h >>> 27;
+                h *= 0x94d049bb133111ebL;
+                return h ^ (h >>> 31);
+            }
+
+            void add(String value) {
+                long h = hash(value);
+                int h1 = (int) h;
+                int h2 = (int) (h >>> 32);
+                for (int i = 0; i < hashes; ++i) {
+                    long bit = Math.floorMod(h1 + (long) i * h2, size);
+                    int word = (int) (bit >>> 6);
+                    long mask = 1L << bit;
+                    long old;
+                    while (((old = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                    }
+                }
+            }
+
+            boolean mightContain(String value) {
+                long h = hash(value);
+                int h1 = (int) h;
+                int h2 = (int) (h >>> 32);
+                for (int i = 0; i < hashes; ++i) {
+                    long bit = Math.floorMod(h1 + (long) i * h2, size);
+                    if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+                }
+                return true;
+            }
+        }
+
+        /**
+         * @return NO when email is certainly not registered, YES when it was
+         *         seen registered recently (a hint: another client may have
+         *         removed it since), MAYBE when the database has to be asked
+         */
+        public Answer lookup(String email) {
+            BloomFilter current = filter;
+            if (current != null && !current.mightContain(email)) {
+                no.incrementAndGet();
+                return Answer.NO;
+            }
+            synchronized (known) {
+                if (known.get(email) != null) {
+                    yes.incrementAndGet();
+                    return Answer.YES;
+                }
+            }
+            maybe.incrementAndGet();
+            return Answer.MAYBE;
+        }
+
+        /**
+         * Records that email is registered, after the database said so or
+         * after the user was added.
+         */
+        public void registered(String email) {
+            synchronized (known) {
+                known.put(email, Boolean.TRUE);
+            }
+            synchronized (this) {
+                if (addedDuringRebuild != null) addedDuringRebuild.add(email);
+            }
+            BloomFilter current = filter;
+            if (current != null) current.add(email);
+        }
+
+        /**
+         * Reads every email from Users into a new filter and swaps it in.
+         */
+        void rebuild() throws SQLException {
+            synchronized (this) {
+                addedDuringRebuild = new ArrayList<String>();
+            }
+            try {
+                //maintenance, not an operation: kept out of the statistics
+                final BloomFilter next = esql.unmeasured(new SessionWork<BloomFilter>() {
+                    public BloomFilter run() throws SQLException {
+                        ColumnarResult count = esql.executeQueryAndReturnColumns("SELECT count(*) FROM Users");
+                        //room to grow until the next rebuild
+                        final BloomFilter next = new BloomFilter(2 * count.getLong(0, 0), falsePositiveRate);
+                        esql.executeQueryAndStream("SELECT email FROM Users", FETCH_SIZE, new RowCallback() {
+                            public void row(ResultSet rs) throws SQLException {
+                                next.add(rs.getString(1));
+                            }
+                        });
+                        return next;
+                    }
+                });
+                synchronized (this) {
+                    for (String email : addedDuringRebuild) next.add(email);
+                    filter = next;
+                }
+                //users may have been removed since they were seen
+                synchronized (known) {
+                    known.clear();
+                }
+            } finally {
+                synchronized (this) {
+                    addedDuringRebuild = null;
+                }
+            }
+        }
+
+        void start() {
+            Thread rebuilder = new Thread(new Runnable() {
+                public void run() {
+                    while (!stopped) {
+                        try {
+                            rebuild();
+                        } catch (SQLException e) {
+                            //answers stay "maybe" or slightly stale until the next try
+                            System.err.println("Unable to rebuild the user email filter: " + e.getMessage());
+                        }
+                        try {
+                            Thread.sleep(rebuildMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "ticketmaster-user-filter");
+            rebuilder.setDaemon(true);
+            rebuilder.start();
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        public String getStatistics() {
+            BloomFilter current = filter;
+            return String.format("%s, %d definitely not registered, %d known registered, %d asked the database",
+                current == null ? "filter not built yet" : "filter of " + current.size / 8 / 1024 + " KB with " + current.hashes + " hashes",
+                no.get(), yes.get(), maybe.get());
+        }
+    }//end UserDirectory
+
+    /**
+     * Checks and installs the indexes in REQUIRED, run with --check-indexes.
+     */
+    public static class IndexAdvisor {
+        /**
+         * An index one or more operations depend on.
+         */
+        static class RequiredIndex {
+            final String name;
+            final String table;
+            final String columns;
+            final String predicate;
+            final String usedBy;
+
+            RequiredIndex(String name, String table, String columns, String predicate, String usedBy) {
+                this.name = name;
+                this.table = table;
+                this.columns = columns;
+                this.predicate = predicate;
+                this.usedBy = usedBy;
+            }
+
+            String ddl() {
+                return "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")" +
+                    (predicate == null ? "" : " WHERE " + predicate);
+            }
+        }
+
+        /**
+         * A query of an operation and the tables it must not scan sequentially.
+         */
+        static class Probe {
+            final String operation;
+            final String query;
+            final Object[] params;
+            final String[] tables;
+
+            Probe(String operation, String query, Object[] params, String... tables) {
+                this.operation = operation;
+                this.query = query;
+                this.params = params;
+                this.tables = tables;
+            }
+        }
+
+        static final RequiredIndex[] REQUIRED = {
+            new RequiredIndex("ticketmaster_showseats_bid", "ShowSeats", "bid", null, "4, 5, 14"),
+            new RequiredIndex("ticketmaster_showseats_sid", "ShowSeats", "sid", null, "2, 5 (seat index)"),
+            new RequiredIndex("ticketmaster_bookings_pending", "Bookings", "bid", "status = 'Pending'", "4"),
+            new RequiredIndex("ticketmaster_bookings_status", "Bookings", "status", null, "7, 12"),
+            new RequiredIndex("ticketmaster_bookings_email", "Bookings", "email", null, "14"),
+            new RequiredIndex("ticketmaster_shows_sdate_sttime", "Shows", "sdate, sttime", null, "8, 10"),
+            new RequiredIndex("ticketmaster_plays_tid", "Plays", "tid", null, "8, 9, 13"),
+            new RequiredIndex("ticketmaster_theaters_cid", "Theaters", "cid", null, "8, 9, 13"),
+        };
+
+        static final Probe[] PROBES = {
+            new Probe("Add Booking (seat index)",
+                "SELECT ss.ssid, cs.tid, ss.price FROM ShowSeats ss LEFT JOIN CinemaSeats cs ON cs.csid = ss.csid WHERE ss.sid = ?",
+                new Object[] { "0" }, "ShowSeats"),
+            new Probe("Cancel Pending Bookings",
+                "SELECT bid FROM Bookings WHERE status = 'Pending' AND bid > ? ORDER BY bid LIMIT 1000",
+                new Object[] { "0" }, "Bookings"),
+            new Probe("Change Seats Reserved for a Booking",
+                "SELECT ssid, sid FROM ShowSeats WHERE bid = ? ORDER BY ssid", new Object[] { "0" }, "ShowSeats"),
+            new Probe("Clear Cancelled Bookings",
+                "SELECT bid FROM Bookings WHERE status = 'Cancelled'", new Object[0], "Bookings"),
+            new Probe("Remove Shows on a Given Date",
+                "SELECT * FROM Shows WHERE sdate = ? AND sid IN (SELECT p.sid FROM Plays p, Theaters t WHERE p.tid = t.tid AND t.cid = ?)",
+                new Object[] { "2000-01-01", "0" }, "Shows", "Theaters"),
+            new Probe("List all Theaters in a Cinema Playing a Given Show",
+                "SELECT t FROM Theaters t, Plays p WHERE p.sid = ? AND t.cid = ? AND p.tid = t.tid",
+                new Object[] { "0", "0" }, "Theaters"),
+            new Probe("List all Shows that Start at a Given Time and Date",
+                "SELECT * FROM Shows WHERE sdate = ? AND sttime = ?", new Object[] { "2000-01-01", "00:00" }, "Shows"),
+            new Probe("List Users with a Pending Booking",
+                "SELECT u.fname, u.lname, u.email FROM Users u, Bookings b WHERE b.status = 'Pending' AND b.email = u.email",
+                new Object[0], "Bookings"),
+            new Probe("List Bookings of a Given User",
+                "SELECT b.bid, ss.ssid FROM Bookings b, ShowSeats ss WHERE b.email = ? AND b.bid = ss.bid",
+                new Object[] { "nobody@example.invalid" }, "Bookings", "ShowSeats"),
+        };
+
+        private final Ticketmaster esql;
+        private final PrintStream report;
+
+        public IndexAdvisor(Ticketmaster esql, PrintStream report) {
+            this.esql = esql;
+            this.report = report;
+        }
+
+        private static String normalize(String expression) {
+            //pg_get_expr adds parentheses and casts of the literals
+            return expression == null ? null : expression.replaceAll("[()\\s]", "").replaceAll("::\\w+", "").toLowerCase();
+        }
+
+        /**
+         * @return the required indexes that no valid index in the catalog covers
+         */
+        public List<RequiredIndex> missing() throws SQLException {
+            ColumnarResult existing = esql.executeQueryAndReturnColumns(
+                "SELECT t.relname, " +
+                "(SELECT string_agg(a.attname, ',' ORDER BY k.n) FROM unnest(i.indkey) WITH ORDINALITY k(attnum, n) " +
+                "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = k.attnum), " +
+                "pg_get_expr(i.indpred, i.indrelid) " +
+                "FROM pg_index i JOIN pg_class t ON t.oid = i.indrelid " +
+                "WHERE i.indisvalid AND pg_table_is_visible(t.oid) AND t.relname IN ('showseats', 'bookings', 'shows', 'plays', 'theaters')");
+            List<RequiredIndex> missing = new ArrayList<RequiredIndex>();
+            for (RequiredIndex required : REQUIRED) {
+                String columns = required.columns.replace(" ", "").toLowerCase();
+                boolean covered = false;
+                for (int row = 0; row < existing.rowCount() && !covered; ++row) {
+                    if (!existing.getString(row, 0).equals(required.table.toLowerCase()) || existing.isNull(row, 1)) continue;
+                    String indexed = existing.getString(row, 1) + ",";
+                    String predicate = existing.isNull(row, 2) ? null : existing.getString(row, 2);
+                    covered = indexed.startsWith(columns + ",") &&
+                        (predicate == null || normalize(predicate).equals(normalize(required.predicate)));
+                }
+                if (!covered) missing.add(required);
+            }
+            return missing;
+        }
+
+        /**
+         * Builds the given indexes one at a time, without blocking writers.
+         * A leftover invalid index from an interrupted build is dropped first.
+         */
+        public void create(List<RequiredIndex> indexes) throws SQLException {
+            for (RequiredIndex index : indexes) {
+                ColumnarResult invalid = esql.executeQueryAndReturnColumns(
+                    "SELECT 1 FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid " +
+                    "WHERE NOT i.indisvalid AND c.relname = ? AND pg_table_is_visible(c.oid)", index.name);
+                //indexes of partitioned tables can not be built or dropped concurrently
+                boolean partitioned = (index.table.equals("Shows") || index.table.equals("ShowSeats")) && esql.partitions().partitioned();
+                if (invalid.rowCount() > 0) esql.executeUpdate("DROP INDEX " + (partitioned ? "" : "CONCURRENTLY ") + index.name);
+                long start = System.nanoTime();
+                esql.executeUpdate(partitioned ? index.ddl().replace(" CONCURRENTLY", "") : index.ddl());
+                report.printf("Created %s in %.1f s%n", index.name, (System.nanoTime() - start) / 1e9);
+            }
+            if (!indexes.isEmpty()) esql.executeUpdate("ANALYZE");
+        }
+
+        /**
+         * Plans every probe with sequential scans disabled and reports the
+         * ones that still scan a table sequentially.
+         *
+         * @return the number of probes that failed
+         */
+        public int verify() throws SQLException {
+            int failed = 0;
+            for (final Probe probe : PROBES) {
+                ColumnarResult plan = esql.runInTransaction(new SessionWork<ColumnarResult>() {
+                    public ColumnarResult run() throws SQLException {
+                        esql.executeUpdate("SET LOCAL enable_seqscan = off");
+                        return esql.executeQueryAndReturnColumns("EXPLAIN " + probe.query, probe.params);
+                    }
+                });
+                List<String> scanned = new ArrayList<String>();
+                for (int row = 0; row < plan.rowCount(); ++row) {
+                    String line = plan.getString(row, 0).toLowerCase();
+                    for (String table : probe.tables) {
+                        if (line.contains("seq scan on " + table.toLowerCase()) && !scanned.contains(table)) scanned.add(table);
+                    }
+                }
+                if (scanned.isEmpty()) {
+                    report.println("  ok    " + probe.operation);
+                } else {
+                    failed++;
+                    report.println("  SCAN  " + probe.operation + ": sequential scan on " + scanned);
+                }
+            }
+            return failed;
+        }
+
+        /**
+         * Reports missing indexes, creates them when create is true, and verifies the plans.
+         */
+        public void run(boolean create) throws SQLException {
+            List<RequiredIndex> missing = missing();
+            if (missing.isEmpty()) {
+                report.println("All " + REQUIRED.length + " required indexes exist.");
+            } else {
+                report.println("Missing indexes:");
+                for (RequiredIndex index : missing) report.println("  " + index.ddl() + ";  -- operations " + index.usedBy);
+            }
+            if (create && !missing.isEmpty()) create(missing);
+            report.println("Query plans:");
+            int failed = verify();
+            if (failed > 0) report.println(failed + " of " + PROBES.length + " operations can not use an index yet.");
+        }
+    }//end IndexAdvisor
+
+    public PartitionManager partitions() {
+        return _partitions;
+    }
+
+    /**
+     * Keeps Shows and ShowSeats partitioned by month of sdate. Key tables kept
+     * by triggers keep sid and ssid unique and take the referencing foreign keys.
+     */
+    public static class PartitionManager {
+        static final Pattern NAME = Pattern.compile ("shows_y(\\d{4})m(\\d{2})");
+        static final String SHOWS_LEGACY = "ticketmaster_shows_unpartitioned";
+        static final String SHOWSEATS_LEGACY = "ticketmaster_showseats_unpartitioned";
+        //partitioned table and the column its key table keeps unique
+        static final String[][] KEYS = { { "Shows", "sid" }, { "ShowSeats", "ssid" } };
+
+        private final Ticketmaster esql;
+        private final int monthsAhead = Integer.getInteger ("ticketmaster.partitions.monthsAhead", 12);
+        private final int retentionMonths = Integer.getInteger ("ticketmaster.partitions.retentionMonths", 0);
+        private final long maintainMillis = Math.max (1000L, Long.getLong ("ticketmaster.partitions.maintainMillis", 3600000L));
+        private final long recheckMillis = Long.getLong ("ticketmaster.partitions.recheckMillis", 60000L);
+        //null until checked
+        private volatile Boolean partitioned = null;
+        private volatile long checkedAt = 0;
+        private final Set<YearMonth> months = ConcurrentHashMap.newKeySet ();
+        private final AtomicLong created = new AtomicLong ();
+        private final AtomicLong dropped = new AtomicLong ();
+        private volatile boolean stopped = false;
+        private Thread worker = null;
+
+        PartitionManager(Ticketmaster esql) {
+            this.esql = esql;
+        }
+
+        static String name(String table, YearMonth month) {
+            return String.format ("%s_y%04dm%02d", table.toLowerCase (), month.getYear (), month.getMonthValue ());
+        }
+
+        static String keys(String table) {
+            return "ticketmaster_" + table.toLowerCase () + "_keys";
+        }
+
+        /**
+         * @return whether Shows is a partitioned table. A "no" is asked
+         *         again after -Dticketmaster.partitions.recheckMillis, as
+         *         another process may migrate the tables in the meantime.
+         */
+        public boolean partitioned() throws SQLException {
+            Boolean known = partitioned;
+            if (known != null && (known || System.currentTimeMillis () - checkedAt < recheckMillis)) return known;
+            ColumnarResult kind = esql.executeQueryAndReturnColumns ("SELECT relkind::text FROM pg_class WHERE oid = to_regclass('shows')");
+            known = kind.rowCount () > 0 && "p".equals (kind.getString (0, 0));
+            if (known) loadMonths ();
+            checkedAt = System.currentTimeMillis ();
+            partitioned = known;
+            return known;
+        }
+
+        /**
+         * Asks the database again after a statement failed in a way a
+         * partitioned Shows explains.
+         *
+         * @return whether Shows is partitioned now
+         */
+        public boolean recheck() throws SQLException {
+            if (Boolean.FALSE.equals (partitioned)) partitioned = null;
+            return partitioned ();
+        }
+
+        private void loadMonths() throws SQLException {
+            ColumnarResult partitions = esql.executeQueryAndReturnColumns (
+                "SELECT c.relname::text FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass('shows')");
+            months.clear ();
+            for (int row = 0; row < partitions.rowCount (); ++row) {
+                Matcher m = NAME.matcher (partitions.getString (row, 0));
+                if (m.matches ()) months.add (YearMonth.of (Integer.parseInt (m.group (1)), Integer.parseInt (m.group (2))));
+            }
+        }
+
+        /**
+         * Creates the Shows and ShowSeats partitions of month unless they exist.
+         */
+        void create(YearMonth month) throws SQLException {
+            if (months.contains (month)) return;
+            final String bounds = " FOR VALUES FROM ('" + month.atDay (1) + "') TO ('" + month.plusMonths (1).atDay (1) + "')";
+            final YearMonth m = month;
+            esql.runInTransaction (new SessionWork<Void>() {
+                public Void run() throws SQLException {
+                    //losing the race below must not abort a surrounding migration or import
+                    PooledConnection session = esql._session.get ();
+                    int errors = session.errors;
+                    Savepoint savepoint = session.conn.setSavepoint ();
+                    try {
+                        esql.executeUpdate ("CREATE TABLE IF NOT EXISTS " + name ("Shows", m) + " PARTITION OF Shows" + bounds);
+                        esql.executeUpdate ("CREATE TABLE IF NOT EXISTS " + name ("ShowSeats", m) + " PARTITION OF ShowSeats" + bounds);
+                        session.conn.releaseSavepoint (savepoint);
+                    } catch (SQLException e) {
+                        //another process created it at the same moment
+                        if (!"42P07".equals (e.getSQLState ()) && !"23505".equals (e.getSQLState ())) throw e;
+                        session.conn.rollback (savepoint);
+                        session.errors = errors;
+                    }
+                    return null;
+                }
+            });
+            months.add (month);
+            created.incrementAndGet ();
+        }
+
+        /**
+         * Makes sure the months from the date from to the date to, given in
+         * any format the server accepts, have partitions.
+         */
+        public void cover(String from, String to) throws SQLException {
+            if (!partitioned ()) return;
+            ColumnarResult range = esql.executeQueryAndReturnColumns (
+                "SELECT to_char(m, 'YYYY-MM') FROM generate_series(date_trunc('month', ?::date), date_trunc('month', ?::date), interval '1 month') m",
+                from, to);
+            for (int row = 0; row < range.rowCount (); ++row) create (YearMonth.parse (range.getString (row, 0)));
+        }
+
+        /**
+         * Replaces Shows and ShowSeats by partitioned copies in one transaction,
+         * reporting the unique indexes that can not be carried over.
+         */
+        public void migrate(final PrintStream report) throws SQLException {
+            if (partitioned ()) {
+                report.println ("Shows and ShowSeats are already partitioned");
+                return;
+            }
+            long start = System.nanoTime ();
+            try {
+                esql.runInTransaction (new SessionWork<Void>() {
+                    public Void run() throws SQLException {
+                        migrateTables (report);
+                        return null;
+                    }
+                });
+            } catch (SQLException e) {
+                months.clear ();
+                partitioned = null;
+                throw e;
+            }
+            checkedAt = System.currentTimeMillis ();
+            partitioned = true;
+            esql.seatIndex ().invalidateAll ();
+            //the planner has to see the partitions before the next queries
+            esql.executeUpdate ("ANALYZE Shows, ShowSeats");
+            report.printf ("Migrated Shows and ShowSeats to %d monthly partitions in %.1f s%n", months.size (), (System.nanoTime () - start) / 1e9);
+        }
+
+        private void migrateTables(PrintStream report) throws SQLException {
+            String both = "('shows'::regclass, 'showseats'::regclass)";
+            esql.executeUpdate ("LOCK TABLE Shows, ShowSeats IN ACCESS EXCLUSIVE MODE");
+            ColumnarResult referencing = esql.executeQueryAndReturnColumns (
+                "SELECT conrelid::regclass::text, quote_ident(conname), pg_get_constraintdef(oid), confrelid::regclass::text, " +
+                "(confrelid = 'shows'::regclass)::int FROM pg_constraint " +
+                "WHERE contype = 'f' AND confrelid IN " + both + " AND conrelid NOT IN " + both);
+            ColumnarResult outgoing = esql.executeQueryAndReturnColumns (
+                "SELECT conrelid::regclass::text, quote_ident(conname), pg_get_constraintdef(oid) FROM pg_constraint " +
+                "WHERE contype = 'f' AND conrelid IN " + both + " AND confrelid NOT IN " + both);
+            ColumnarResult indexes = esql.executeQueryAndReturnColumns (
+                "SELECT indexrelid::regclass::text, pg_get_indexdef(indexrelid), indisunique::int FROM pg_index WHERE indrelid IN " + both +
+                " AND NOT indisprimary");
+            ColumnarResult sequences = esql.executeQueryAndReturnColumns (
+                "SELECT d.objid::regclass::text FROM pg_depend d JOIN pg_class s ON s.oid = d.objid " +
+                "WHERE s.relkind = 'S' AND d.deptype = 'a' AND d.refobjid IN " + both);
+            boolean triggers = esql.executeQueryAndReturnColumns (
+                "SELECT 1 FROM pg_trigger WHERE tgrelid = 'showseats'::regclass AND tgname = 'ticketmaster_showseats_notify'").rowCount () > 0;
+
+            //the same constraints, pointing at the key tables
+            String[] moved = new String[referencing.rowCount ()];
+            for (int row = 0; row < referencing.rowCount (); ++row) {
+                String[] key = KEYS[referencing.getInt (row, 4) == 1 ? 0 : 1];
+                String target = "REFERENCES " + referencing.getString (row, 3) + "(" + key[1] + ")";
+                if (!referencing.getString (row, 2).contains (target))
+                    throw new SQLException ("Foreign key " + referencing.getString (row, 1) + " of " + referencing.getString (row, 0) +
+                        " does not reference " + key[0] + " by " + key[1] + " alone, migration rolled back: " + referencing.getString (row, 2));
+                moved[row] = referencing.getString (row, 2).replace (target, "REFERENCES " + keys (key[0]) + "(" + key[1] + ")");
+                esql.executeUpdate ("ALTER TABLE " + referencing.getString (row, 0) + " DROP CONSTRAINT " + referencing.getString (row, 1));
+            }
+            //serial columns keep their sequences when the old tables go
+            for (int row = 0; row < sequences.rowCount (); ++row) {
+                esql.executeUpdate ("ALTER SEQUENCE " + sequences.getString (row, 0) + " OWNED BY NONE");
+            }
+
+            esql.executeUpdate ("ALTER TABLE Shows RENAME TO " + SHOWS_LEGACY);
+            esql.executeUpdate ("ALTER TABLE ShowSeats RENAME TO " + SHOWSEATS_LEGACY);
+            esql.executeUpdate ("CREATE TABLE Shows (LIKE " + SHOWS_LEGACY + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS) PARTITION BY RANGE (sdate)");
+            esql.executeUpdate ("CREATE TABLE ShowSeats (LIKE " + SHOWSEATS_LEGACY + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS, " +
+                "sdate date NOT NULL) PARTITION BY RANGE (sdate)");
+
+            //the months of the existing shows and the ones ahead
+            ColumnarResult range = esql.executeQueryAndReturnColumns (
+                "SELECT to_char(m, 'YYYY-MM') FROM generate_series(" +
+                "(SELECT date_trunc('month', min(sdate)) FROM " + SHOWS_LEGACY + "), " +
+                "(SELECT date_trunc('month', max(sdate)) FROM " + SHOWS_LEGACY + "), interval '1 month') m");
+            for (int row = 0; row < range.rowCount (); ++row) create (YearMonth.parse (range.getString (row, 0)));
+            createAhead ();
+
+            int shows = esql.executeUpdate ("INSERT INTO Shows SELECT * FROM " + SHOWS_LEGACY);
+            int seats = esql.executeUpdate ("INSERT INTO ShowSeats SELECT ss.*, s.sdate FROM " + SHOWSEATS_LEGACY + " ss JOIN Shows s ON s.sid = ss.sid");
+            long legacySeats = esql.executeQueryAndReturnColumns ("SELECT count(*) FROM " + SHOWSEATS_LEGACY).getLong (0, 0);
+            if (seats != legacySeats) throw new SQLException ((legacySeats - seats) + " ShowSeats row(s) have no show, migration rolled back");
+            report.println ("  copied " + shows + " shows and " + seats + " show seats");
+            esql.executeUpdate ("DROP TABLE " + SHOWSEATS_LEGACY + ", " + SHOWS_LEGACY);
+
+            esql.executeUpdate ("ALTER TABLE Shows ADD PRIMARY KEY (sid, sdate)");
+            esql.executeUpdate ("ALTER TABLE ShowSeats ADD PRIMARY KEY (ssid, sdate)");
+            esql.executeUpdate ("ALTER TABLE ShowSeats ADD FOREIGN KEY (sid, sdate) REFERENCES Shows (sid, sdate) ON DELETE CASCADE");
+            for (String[] key : KEYS) {
+                esql.executeUpdate ("CREATE TABLE " + keys (key[0]) + " AS SELECT " + key[1] + " FROM " + key[0]);
+                esql.executeUpdate ("ALTER TABLE " + keys (key[0]) + " ADD PRIMARY KEY (" + key[1] + ")");
+                installKeyTrigger (key[0], key[1]);
+            }
+            for (int row = 0; row < referencing.rowCount (); ++row) {
+                esql.executeUpdate ("ALTER TABLE " + referencing.getString (row, 0) + " ADD CONSTRAINT " + referencing.getString (row, 1) + " " + moved[row]);
+                report.println ("  moved foreign key " + referencing.getString (row, 1) + " of " + referencing.getString (row, 0) + " to " + moved[row]);
+            }
+            for (int row = 0; row < outgoing.rowCount (); ++row) {
+                esql.executeUpdate ("ALTER TABLE " + outgoing.getString (row, 0) + " ADD CONSTRAINT " + outgoing.getString (row, 1) + " " + outgoing.getString (row, 2));
+            }
+            for (int row = 0; row < indexes.rowCount (); ++row) {
+                if (indexes.getInt (row, 2) == 1) {
+                    report.println ("  unique index " + indexes.getString (row, 0) + " can not be kept, it does not include sdate: " + indexes.getString (row, 1));
+                    continue;
+                }
+                esql.executeUpdate (indexes.getString (row, 1));
+            }
+            if (triggers) esql.seatIndex ().installTriggers ();
+        }
+
+        /**
+         * Keeps the key table of table in step with its rows, and refuses to move
+         * a row to another month.
+         */
+        private void installKeyTrigger(String table, String column) throws SQLException {
+            String keys = keys (table);
+            esql.executeUpdate (
+                "CREATE OR REPLACE FUNCTION " + keys + "() RETURNS trigger AS $$ " +
+                "BEGIN " +
+                "  IF TG_WHEN = 'BEFORE' THEN " +
+                "    RAISE EXCEPTION '" + table + " rows can not move to another month' USING ERRCODE = 'feature_not_supported'; " +
+                "  ELSIF TG_OP = 'INSERT' THEN " +
+                "    INSERT INTO " + keys + " (" + column + ") VALUES (NEW." + column + "); " +
+                "  ELSIF TG_OP = 'UPDATE' THEN " +
+                "    UPDATE " + keys + " SET " + column + " = NEW." + column + " WHERE " + column + " = OLD." + column + "; " +
+                "  ELSIF NOT EXISTS (SELECT 1 FROM " + table + " WHERE " + column + " = OLD." + column + " AND sdate = OLD.sdate) THEN " +
+                "    DELETE FROM " + keys + " WHERE " + column + " = OLD." + column + "; " +
+                "  END IF; " +
+                "  RETURN NULL; " +
+                "END $$ LANGUAGE plpgsql");
+            esql.executeUpdate ("CREATE TRIGGER " + keys + " AFTER INSERT OR DELETE OR UPDATE OF " + column + " ON " + table +
+                " FOR EACH ROW EXECUTE PROCEDURE " + keys + "()");
+            esql.executeUpdate ("CREATE TRIGGER " + keys + "_move BEFORE UPDATE OF sdate ON " + table +
+                " FOR EACH ROW WHEN (date_trunc('month', NEW.sdate) <> date_trunc('month', OLD.sdate)) EXECUTE PROCEDURE " + keys + "()");
+        }
+
+        /**
+         * Creates the partitions of this month and the monthsAhead next ones.
+         */
+        void createAhead() throws SQLException {
+            YearMonth now = YearMonth.now ();
+            for (int i = 0; i <= monthsAhead; ++i) create (now.plusMonths (i));
+        }
+
+        /**
+         * Detaches and drops the partitions of the months that ended more
+         * than retentionMonths ago, with the plays and bookings of their shows.
+         *
+         * @return the number of months dropped
+         */
+        int dropExpired(PrintStream report) throws SQLException {
+            if (retentionMonths <= 0 || !partitioned ()) return 0;
+            loadMonths ();
+            YearMonth cutoff = YearMonth.now ().minusMonths (retentionMonths);
+            List<YearMonth> expired = new ArrayList<YearMonth>();
+            for (YearMonth month : months) if (month.isBefore (cutoff)) expired.add (month);
+            Collections.sort (expired);
+            for (YearMonth month : expired) {
+                drop (month);
+                report.println ("Dropped the shows of " + month);
+            }
+            return expired.size ();
+        }
+
+        private void drop(final YearMonth month) throws SQLException {
+            esql.runInTransaction (new SessionWork<Void>() {
+                public Void run() throws SQLException {
+                    //seats first, nothing may reference the shows when they go
+                    String seats = name ("ShowSeats", month);
+                    if (!esql.executeQueryAndReturnColumns ("SELECT to_regclass(?)::text", seats).isNull (0, 0)) {
+                        removeKeys ("ShowSeats", "ssid", seats);
+                        esql.executeUpdate ("ALTER TABLE ShowSeats DETACH PARTITION " + seats);
+                        esql.executeUpdate ("DROP TABLE " + seats);
+                    }
+                    removeKeys ("Shows", "sid", name ("Shows", month));
+                    esql.executeUpdate ("ALTER TABLE Shows DETACH PARTITION " + name ("Shows", month));
+                    esql.executeUpdate ("DROP TABLE " + name ("Shows", month));
+                    esql.afterCommit (new Runnable () {
+                        public void run() {
+                            esql._results.invalidate ("shows", "showseats");
+                            esql.seatIndex ().invalidateAll ();
+                        }
+                    });
+                    return null;
+                }
+            });
+            months.remove (month);
+            dropped.incrementAndGet ();
+        }
+
+        /**
+         * Deletes the keys of a partition about to be dropped, with the rows
+         * referencing them.
+         */
+        private void removeKeys(String table, String column, String partition) throws SQLException {
+            esql.executeUpdate ("DELETE FROM " + keys (table) + " WHERE " + column + " IN (SELECT " + column + " FROM " + partition + ")");
+        }
+
+        /**
+         * Creates the partitions ahead and drops the expired ones.
+         */
+        public void maintain(PrintStream report) throws SQLException {
+            if (!partitioned ()) return;
+            int before = months.size ();
+            createAhead ();
+            int expired = dropExpired (report);
+            report.println ("Partitions: " + (months.size () + expired - before) + " created, " + expired + " month(s) dropped, " + getStatistics ());
+        }
+
+        /**
+         * Runs maintain every maintainMillis while Shows is partitioned,
+         * looking again each time while it is not.
+         */
+        void start() {
+            if (worker != null) return;
+            worker = new Thread (new Runnable () {
+                public void run() {
+                    while (!stopped) {
+                        try {
+                            if (partitioned ()) {
+                                createAhead ();
+                                dropExpired (System.err);
+                            }
+                        } catch (SQLException e) {
+                            System.err.println ("Unable to maintain the partitions: " + e.getMessage ());
+                        }
+                        try {
+                            Thread.sleep (maintainMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "ticketmaster-partitions");
+            worker.setDaemon (true);
+            worker.start ();
+        }
+
+        void stop() {
+            stopped = true;
+            if (worker != null) worker.interrupt ();
+        }
+
+        public String getStatistics() {
+            Boolean known = partitioned;
+            if (known == null) return "not checked yet";
+            if (!known) return "not partitioned";
+            List<YearMonth> sorted = new ArrayList<YearMonth>(months);
+            Collections.sort (sorted);
+            return String.format ("%d monthly partitions%s, %d created, %d dropped, retention %s",
+                sorted.size (), sorted.isEmpty () ? "" : " (" + sorted.get (0) + " to " + sorted.get (sorted.size () - 1) + ")",
+                created.get (), dropped.get (), retentionMonths <= 0 ? "unlimited" : retentionMonths + " months");
+        }
+    }//end PartitionManager
+
+    private PooledConnection acquire() throws SQLException {
+        PooledConnection conn = _session.get ();
+        return conn != null ? conn : pool ().borrow ();
+    }
+
+    /**
+     * Hands conn back to the pool unless it is pinned to this thread.
+     */
+    private void release(PooledConnection conn) {
+        if (_session.get () != conn) _pool.release (conn);
+    }
+
+    public String getPoolStatistics() {
+        return _pool == null ? "not connected yet" : _pool.getStatistics ();
+    }
+
+    /**
+     * Routes listing queries to a standby in -Dticketmaster.replicas that holds
+     * the client's last commit and is within -Dticketmaster.replicas.maxLagMillis.
+     */
+    static class ReplicaRouter {
+        static final String PRIMARY_POSITION = "SELECT pg_current_wal_lsn()::text";
+        //null on a server that is not in recovery
+        static final String REPLAY_POSITION = "SELECT pg_last_wal_replay_lsn()::text";
+
+        static class Replica {
+            final String endpoint;
+            final String url;
+            volatile ConnectionPool pool = null;
+            //every commit made on the primary before this time has been replayed, -1 when unusable
+            volatile long caughtUpTo = -1;
+            volatile String state = "not checked yet";
+            final AtomicLong reads = new AtomicLong ();
+
+            Replica(String endpoint, String url) {
+                this.endpoint = endpoint;
+                this.url = url;
+            }
+        }
+
+        private final Ticketmaster esql;
+        private final String user;
+        private final String passwd;
+        private final List<Replica> replicas = new ArrayList<Replica>();
+        private final long checkMillis = Math.max (10L, Long.getLong ("ticketmaster.replicas.checkMillis", 1000L));
+        private final long maxLagMillis = Long.getLong ("ticketmaster.replicas.maxLagMillis", 5000L);
+        //time and WAL position of the primary at the recent checks, oldest first
+        private final ArrayDeque<long[]> positions = new ArrayDeque<long[]>();
+        //time of the last commit of every client that wrote within maxLagMillis
+        private final ConcurrentHashMap<String, Long> commits = new ConcurrentHashMap<String, Long>();
+        private volatile long lastCommit = 0;
+        //client of the request running on this thread, null on the console
+        final ThreadLocal<String> client = new ThreadLocal<String>();
+        private final AtomicInteger next = new AtomicInteger ();
+        private final AtomicLong ownWrites = new AtomicLong ();
+        private final AtomicLong lagging = new AtomicLong ();
+        private final AtomicLong unavailable = new AtomicLong ();
+        private final AtomicLong failedOver = new AtomicLong ();
+        private volatile boolean stopped = false;
+        private Thread monitor = null;
+
+        ReplicaRouter(Ticketmaster esql, String dbname, String user, String passwd) {
+            this.esql = esql;
+            this.user = user;
+            this.passwd = passwd;
+            for (String endpoint : System.getProperty ("ticketmaster.replicas", "").split (",")) {
+                if (endpoint.trim ().isEmpty ()) continue;
+                replicas.add (new Replica (endpoint.trim (), "jdbc:postgresql://" + endpoint.trim () + "/" + dbname + "?stringtype=unspecified"));
+            }
+        }
+
+        boolean enabled() {
+            return !replicas.isEmpty ();
+        }
+
+        String client() {
+            String name = client.get ();
+            return name == null ? "" : name;
+        }
+
+        /**
+         * Records that client just committed, so its next reads wait for a
+         * standby that replayed this commit.
+         */
+        void committed(String client) {
+            long now = System.currentTimeMillis ();
+            lastCommit = now;
+            commits.put (client, now);
+        }
+
+        long lastCommit() {
+            return lastCommit;
+        }
+
+        void start() {
+            if (replicas.isEmpty () || monitor != null) return;
+            monitor = new Thread (new Runnable () {
+                public void run() {
+                    while (!stopped) {
+                        check ();
+                        try {
+                            Thread.sleep (checkMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "ticketmaster-replicas");
+            monitor.setDaemon (true);
+            monitor.start ();
+        }
+
+        void stop() {
+            stopped = true;
+            if (monitor != null) monitor.interrupt ();
+            for (Replica replica : replicas) {
+                if (replica.pool != null) replica.pool.close ();
+            }
+        }
+
+        /**
+         * @return the WAL position written as 16/B374D848 as a number
+         */
+        static long position(String lsn) {
+            int slash = lsn.indexOf ('/');
+            return (Long.parseLong (lsn.substring (0, slash), 16) << 32) | Long.parseLong (lsn.substring (slash + 1), 16);
+        }
+
+        /**
+         * Reads a WAL position without counting the probe in the statistics.
+         */
+        private ColumnarResult probe(final String query) throws SQLException {
+            return esql.unmeasured (new SessionWork<ColumnarResult>() {
+                public ColumnarResult run() throws SQLException {
+                    return esql.executeQueryAndReturnColumns (query);
+                }
+            });
+        }
+
+        /**
+         * Takes the positions of the primary and of every standby and
+         * updates how far each standby has caught up.
+         */
+        void check() {
+            //every commit finished before now is at or before the position read after it
+            long now = System.currentTimeMillis ();
+            try {
+                positions.addLast (new long[] { now, position (probe (PRIMARY_POSITION).getString (0, 0)) });
+            } catch (SQLException e) {
+                System.err.println ("Unable to read the primary WAL position: " + e.getMessage ());
+                return;
+            }
+            while (positions.size () > 2 && positions.peekFirst ()[0] < now - 2 * maxLagMillis - checkMillis) positions.pollFirst ();
+            for (Map.Entry<String, Long> commit : commits.entrySet ()) {
+                //any standby within maxLagMillis holds commits older than that
+                if (commit.getValue () < now - maxLagMillis) commits.remove (commit.getKey (), commit.getValue ());
+            }
+
+            for (final Replica replica : replicas) {
+                try {
+                    if (replica.pool == null) replica.pool = new ConnectionPool (replica.url, user, passwd);
+                    ColumnarResult replayed = onReplica (replica, new SessionWork<ColumnarResult>() {
+                        public ColumnarResult run() throws SQLException {
+                            return probe (REPLAY_POSITION);
+                        }
+                    });
+                    if (replayed.isNull (0, 0)) {
+                        replica.caughtUpTo = -1;
+                        replica.state = "not a standby";
+                        continue;
+                    }
+                    long position = position (replayed.getString (0, 0));
+                    long caughtUpTo = 0;
+                    for (long[] primary : positions) {
+                        if (primary[1] <= position) caughtUpTo = primary[0];
+                    }
+                    replica.caughtUpTo = caughtUpTo;
+                    replica.state = "up";
+                } catch (SQLException e) {
+                    replica.caughtUpTo = -1;
+                    replica.state = "down (" + e.getMessage () + ")";
+                }
+            }
+        }
+
+        /**
+         * Picks the next standby, round robin, that holds the last commit of
+         * the client on this thread and is not lagging.
+         *
+         * @return the standby, or null to read from the primary
+         */
+        Replica route() {
+            if (replicas.isEmpty ()) return null;
+            Long own = commits.get (client ());
+            long notBefore = own == null ? 0 : own;
+            long now = System.currentTimeMillis ();
+            boolean behindOwnWrite = false;
+            boolean behind = false;
+            int first = next.getAndIncrement ();
+            for (int i = 0; i < replicas.size (); ++i) {
+                Replica replica = replicas.get (Math.floorMod (first + i, replicas.size ()));
+                long caughtUpTo = replica.caughtUpTo;
+                if (caughtUpTo < 0) continue;
+                if (now - caughtUpTo > maxLagMillis) behind = true;
+                else if (caughtUpTo < notBefore) behindOwnWrite = true;
+                else return replica;
+            }
+            (behindOwnWrite ? ownWrites : behind ? lagging : unavailable).incrementAndGet ();
+            return null;
+        }
+
+        /**
+         * Runs work with a connection of replica pinned to this thread in
+         * place of the current session, if any.
+         */
+        <T> T onReplica(Replica replica, SessionWork<T> work) throws SQLException {
+            PooledConnection previous = esql._session.get ();
+            PooledConnection conn = replica.pool.borrow ();
+            esql._session.set (conn);
+            try {
+                return work.run ();
+            } finally {
+                if (previous == null) esql._session.remove ();
+                else esql._session.set (previous);
+                replica.pool.release (conn);
+            }
+        }
+
+        /**
+         * Records that a query failed on replica and goes to the primary
+         * instead; a lost connection takes the standby out until the next check.
+         */
+        void failedOver(Replica replica, SQLException e) {
+            failedOver.incrementAndGet ();
+            String state = e.getSQLState ();
+            if (state != null && state.startsWith ("08")) {
+                replica.caughtUpTo = -1;
+                replica.state = "down (" + e.getMessage () + ")";
+            }
+        }
+
+        public String getStatistics() {
+            if (replicas.isEmpty ()) return "none configured";
+            long now = System.currentTimeMillis ();
+            StringBuilder out = new StringBuilder ();
+            for (Replica replica : replicas) {
+                long caughtUpTo = replica.caughtUpTo;
+                out.append (replica.endpoint).append (' ')
+                    .append (caughtUpTo < 0 ? replica.state : caughtUpTo == 0 ? "lag over " + maxLagMillis + " ms" : "lag " + (now - caughtUpTo) + " ms")
+                    .append (", ").append (replica.reads.get ()).append (" reads; ");
+            }
+            return out.append (String.format ("on the primary: %d after own writes, %d lagging, %d unavailable, %d failed over",
+                ownWrites.get (), lagging.get (), unavailable.get (), failedOver.get ())).toString ();
+        }
+    }//end ReplicaRouter
+
+    public ReplicaRouter replicas() {
+        return _replicas;
+    }
+
+    /**
+     * @return the standby to send a read-only query to, or null for the
+     *         primary; always null inside a transaction
+     */
+    private ReplicaRouter.Replica readReplica() {
+        if (!_replicas.enabled ()) return null;
+        PooledConnection session = _session.get ();
+        try {
+            if (session != null && !session.conn.getAutoCommit ()) return null;
+        } catch (SQLException e) {
+            return null;
+        }
+        return _replicas.route ();
+    }
+
+    /**
+     * Same as executeQueryAndReturnColumns, run on replica unless it is
+     * null or fails the query.
+     */
+    private ColumnarResult executeReadQuery (ReplicaRouter.Replica replica, final String query, final Object... params) throws SQLException {
+        if (replica != null) {
+            try {
+                ColumnarResult result = _replicas.onReplica (replica, new SessionWork<ColumnarResult>() {
+                    public ColumnarResult run() throws SQLException {
+                        return executeQueryAndReturnColumns (query, params);
+                    }
+                });
+                replica.reads.incrementAndGet ();
+                return result;
+            } catch (SQLException e) {
+                _replicas.failedOver (replica, e);
+            }
+        }
+        return executeQueryAndReturnColumns (query, params);
+    }
+    
+    /**
+     * Method to execute an update SQL statement.  Update SQL instructions
+     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+     * 
+     * @param sql the input SQL string, using ? for parameters
+     * @param params the values bound to the parameters of sql
+     * @return the number of rows affected
+     * @throws java.sql.SQLException when update failed
+     * */
+    public int executeUpdate (final String sql, final Object... params) throws SQLException { 
+        if (journaledAlone (sql)) {
+            return runInTransaction ("READ COMMITTED", new SessionWork<Integer>() {
+                public Integer run() throws SQLException {
+                    return executeUpdate (sql, params);
+                }
+            });
+        }
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        try {
+            // fetches the cached statement object and binds the parameters
+            PreparedStatement stmt = conn.statements.prepare (sql, params);
+
+            // issues the update instruction
+            int count = stmt.executeUpdate ();
+            rows = count;
+            written (sql, params, count);
+            return count;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement (sql, start, rows);
+        }
+    }//end executeUpdate
+
+    /**
+     * Method to execute one update SQL statement for many parameter rows,
+     * sent to the DBMS as a single JDBC batch.
+     *
+     * @param sql the input SQL string, using ? for parameters
+     * @param rows one array of parameter values per execution
+     * @return the number of rows affected by each execution, in order
+     * @throws java.sql.SQLException when the batch failed
+     */
+    public int[] executeBatch (final String sql, final List<Object[]> rows) throws SQLException {
+        if (journaledAlone (sql)) {
+            return runInTransaction ("READ COMMITTED", new SessionWork<int[]>() {
+                public int[] run() throws SQLException {
+                    return executeBatch (sql, rows);
+                }
+            });
+        }
+        long start = System.nanoTime ();
+        long affected = -1;
+        PooledConnection conn = acquire ();
+        try {
+            PreparedStatement stmt = conn.statements.prepare (sql);
+            for (Object[] row : rows) {
+                StatementCache.bind (stmt, row);
+                stmt.addBatch ();
+            }
+            int[] counts = stmt.executeBatch ();
+            for (int i = 0; i < counts.length; ++i) written (sql, rows.get (i), counts[i]);
+            affected = 0;
+            for (int count : counts) affected += Math.max (0, count);
+            return counts;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement (sql, start, affected);
+        }
+    }//end executeBatch
+
+    /**
+     * Streams data into the database with COPY ... FROM STDIN.
+     *
+     * @param sql the COPY statement
+     * @param data the rows, in the format the statement names
+     * @return the number of rows copied
+     * @throws java.sql.SQLException when the copy failed
+     * @throws java.io.IOException when data could not be read
+     */
+    public long copyIn (String sql, Reader data) throws SQLException, IOException {
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        try {
+            CopyManager copy = conn.conn.unwrap (PGConnection.class).getCopyAPI ();
+            rows = copy.copyIn (sql, data);
+            return rows;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement (sql, start, rows);
+        }
+    }//end copyIn
+
+    /**
+     * Streams the output of COPY ... TO STDOUT into out as it arrives.
+     *
+     * @param sql the COPY statement
+     * @param out receives the rows, in the format the statement names
+     * @return the number of rows copied
+     * @throws java.sql.SQLException when the copy failed
+     * @throws java.io.IOException when out could not be written
+     */
+    public long copyOut (String sql, Writer out) throws SQLException, IOException {
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        try {
+            CopyManager copy = conn.conn.unwrap (PGConnection.class).getCopyAPI ();
+            rows = copy.copyOut (sql, out);
+            return rows;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement (sql, start, rows);
+        }
+    }//end copyOut
+
+    /**
+     * Thrown by reserveSeats when at least one seat could not be reserved.
+     * The transaction it was thrown from is rolled back.
+     */
+    public static class SeatsTakenException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean[] reserved;
+
+        SeatsTakenException(boolean[] reserved) {
+            super("One or more seats are no longer available");
+            this.reserved = reserved;
+        }
+
+        public boolean[] getReserved() {
+            return reserved;
+        }
+    }
+
+    /**
+     * Thrown by createBooking when the booking failed validation. Nothing
+     * was inserted then.
+     */
+    public static class BookingRejectedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        public enum Problem { BOOKING_EXISTS, NO_SUCH_SHOW, NO_SUCH_USER }
+
+        private final EnumSet<Problem> problems;
+
+        BookingRejectedException(EnumSet<Problem> problems) {
+            super("Booking rejected: " + problems);
+            this.problems = problems;
+        }
+
+        public EnumSet<Problem> getProblems() {
+            return problems;
+        }
+    }
+
+    //parameters bid, sid, email; the checks of CREATE_BOOKING without the insert
+    static final String CHECK_BOOKING =
+        "SELECT EXISTS (SELECT 1 FROM Bookings WHERE bid = ?)::int, " +
+        "EXISTS (SELECT 1 FROM Shows WHERE sid = ?)::int, " +
+        "EXISTS (SELECT 1 FROM Users WHERE email = ?)::int";
+
+    /**
+     * Runs the checks of createBooking in one round trip, before the seats are
+     * asked for.
+     *
+     * @throws BookingRejectedException when a check failed
+     */
+    public void checkBooking (String bid, String sid, String email) throws SQLException {
+        ColumnarResult result = executeQueryAndReturnColumns (CHECK_BOOKING, bid, sid, email);
+        EnumSet<BookingRejectedException.Problem> problems = EnumSet.noneOf (BookingRejectedException.Problem.class);
+        if (result.getInt (0, 0) == 1) problems.add (BookingRejectedException.Problem.BOOKING_EXISTS);
+        if (result.getInt (0, 1) == 0) problems.add (BookingRejectedException.Problem.NO_SUCH_SHOW);
+        if (result.getInt (0, 2) == 0) problems.add (BookingRejectedException.Problem.NO_SUCH_USER);
+        if (!problems.isEmpty ()) throw new BookingRejectedException (problems);
+    }
+
+    //validates and inserts a booking in one statement; the row is built by
+    //json_populate_record so every value gets the type of its Bookings column
+    static final String CREATE_BOOKING =
+        "WITH r AS (SELECT * FROM json_populate_record (NULL::Bookings, ?)), " +
+        "v AS (SELECT EXISTS (SELECT 1 FROM Bookings b, r WHERE b.bid = r.bid)::int AS booking_exists, " +
+        "EXISTS (SELECT 1 FROM Shows s, r WHERE s.sid = r.sid)::int AS show_found, " +
+        "EXISTS (SELECT 1 FROM Users u, r WHERE u.email = r.email)::int AS user_found), " +
+        "ins AS (INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email) " +
+        "SELECT r.bid, r.status, r.bdatetime, r.seats, r.sid, r.email FROM r, v " +
+        "WHERE v.booking_exists = 0 AND v.show_found = 1 AND v.user_found = 1 RETURNING bid) " +
+        "SELECT v.booking_exists, v.show_found, v.user_found, (SELECT count(*) FROM ins)::int FROM v";
+
+    /**
+     * Checks that the booking id is unused and that the show and the user
+     * exist, and inserts the booking, all in one round trip.
+     *
+     * @throws BookingRejectedException when a check failed; nothing was inserted
+     * @throws java.sql.SQLException when the insert failed, e.g. on a malformed date
+     */
+    public void createBooking (String bid, String status, String bdatetime, String seats, String sid, String email) throws SQLException {
+        StringBuilder row = new StringBuilder ("{");
+        String[] names = { "bid", "status", "bdatetime", "seats", "sid", "email" };
+        String[] values = { bid, status, bdatetime, seats, sid, email };
+        for (int i = 0; i < names.length; ++i) {
+            if (i > 0) row.append (',');
+            row.append (jsonQuote (names[i])).append (':').append (jsonQuote (values[i]));
+        }
+        row.append ('}');
+
+        ColumnarResult result;
+        try {
+            result = executeQueryAndReturnColumns (CREATE_BOOKING, row.toString ());
+        } catch (SQLException e) {
+            //a concurrent booking with the same id won the race
+            if ("23505".equals (e.getSQLState ())) throw new BookingRejectedException (EnumSet.of (BookingRejectedException.Problem.BOOKING_EXISTS));
+            throw e;
+        }
+        if (result.getInt (0, 3) == 1) {
+            if ("Pending".equalsIgnoreCase (status)) {
+                final String leased = bid;
+                afterCommit (new Runnable () {
+                    public void run() {
+                        _holds.lease (leased);
+                    }
+                });
+            }
+            return;
+        }
+        EnumSet<BookingRejectedException.Problem> problems = EnumSet.noneOf (BookingRejectedException.Problem.class);
+        if (result.getInt (0, 0) == 1) problems.add (BookingRejectedException.Problem.BOOKING_EXISTS);
+        if (result.getInt (0, 1) == 0) problems.add (BookingRejectedException.Problem.NO_SUCH_SHOW);
+        if (result.getInt (0, 2) == 0) problems.add (BookingRejectedException.Problem.NO_SUCH_USER);
+        throw new BookingRejectedException (problems);
+    }
+
+    /**
+     * @return value as a JSON string literal, or null
+     */
+    static String jsonQuote(String value) {
+        if (value == null) return "null";
+        StringBuilder quoted = new StringBuilder (value.length () + 2).append ('"');
+        for (int i = 0; i < value.length (); ++i) {
+            char c = value.charAt (i);
+            switch (c) {
+                case '"': quoted.append ("\\\""); break;
+                case '\\': quoted.append ("\\\\"); break;
+                case '\n': quoted.append ("\\n"); break;
+                case '\r': quoted.append ("\\r"); break;
+                case '\t': quoted.append ("\\t"); break;
+                default:
+                    if (c < 0x20) quoted.append (String.format ("\\u%04x", (int) c));
+                    else quoted.append (c);
+            }
+        }
+        return quoted.append ('"').toString ();
+    }
+
+    static final String RESERVE_SEAT = "UPDATE ShowSeats SET bid = ? WHERE ssid = ? AND sid = ? AND bid IS NULL";
+
+    /**
+     * Reserves the given free seats of a show for booking bid, all or nothing,
+     * in ascending ssid order.
+     *
+     * @param bid the booking the seats are reserved for
+     * @param sid the show the seats belong to
+     * @param ssids the ShowSeats ids to reserve
+     * @throws SeatsTakenException when a seat is taken or not a seat of show sid
+     * @throws java.sql.SQLException when the reservation failed
+     */
+    public void reserveSeats (final String bid, final String sid, List<String> ssids) throws SQLException {
+        final List<String> requested = new ArrayList<String>(ssids);
+        final Integer[] order = new Integer[requested.size()];
+        for (int i = 0; i < order.length; ++i) order[i] = i;
+        Arrays.sort (order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareIds (requested.get (a), requested.get (b));
+            }
+        });
+
+        runInTransaction (new SessionWork<Void>() {
+            public Void run() throws SQLException {
+                List<Object[]> rows = new ArrayList<Object[]>();
+                for (Integer i : order)
+                    rows.add (new Object[] { bid, requested.get (i), sid });
+                int[] counts = executeBatch (RESERVE_SEAT, rows);
+
+                boolean[] reserved = new boolean[order.length];
+                boolean all = true;
+                for (int k = 0; k < order.length; ++k) {
+                    reserved[order[k]] = counts[k] == 1;
+                    all &= reserved[order[k]];
+                }
+                if (!all) throw new SeatsTakenException (reserved);
+                afterCommit (new Runnable() {
+                    public void run() {
+                        _seats.update (sid, requested, false);
+                    }
+                });
+                return null;
+            }
+        });
+    }//end reserveSeats
+
+    /**
+     * Cancels pending bookings and frees their seats in ascending bid order, a
+     * bounded chunk per transaction, skipping rows locked by others.
+     */
+    public static class BulkCanceller {
+        private final Ticketmaster esql;
+        private int chunkSize = Integer.getInteger("ticketmaster.cancel.chunkSize", 1000);
+        private String sid = null;
+        private String cid = null;
+        private int olderThanMinutes = -1;
+
+        public BulkCanceller(Ticketmaster esql) {
+            this.esql = esql;
+        }
+
+        /** Only cancel bookings for show sid. */
+        public BulkCanceller forShow(String sid) {
+            this.sid = sid;
+            return this;
+        }
+
+        /** Only cancel bookings for shows playing at cinema cid. */
+        public BulkCanceller atCinema(String cid) {
+            this.cid = cid;
+            return this;
+        }
+
+        /** Only cancel bookings made more than minutes ago. */
+        public BulkCanceller olderThanMinutes(int minutes) {
+            this.olderThanMinutes = minutes;
+            return this;
+        }
+
+        public BulkCanceller chunkSize(int chunkSize) {
+            this.chunkSize = Math.max (1, chunkSize);
+            return this;
+        }
+
+        /**
+         * Cancels every matching pending booking.
+         *
+         * @param progress receives one line per committed chunk
+         * @return the number of bookings cancelled
+         * @throws java.sql.SQLException when a chunk failed; earlier chunks stay committed
+         */
+        public long run(PrintStream progress) throws SQLException {
+            StringBuilder filter = new StringBuilder ();
+            final List<Object> filterParams = new ArrayList<Object>();
+            if (sid != null) {
+                filter.append (" AND sid = ?");
+                filterParams.add (sid);
+            }
+            if (cid != null) {
+                filter.append (" AND sid IN (SELECT p.sid FROM Plays p, Theaters t WHERE p.tid = t.tid AND t.cid = ?)");
+                filterParams.add (cid);
+            }
+            if (olderThanMinutes >= 0) {
+                filter.append (" AND bdatetime < now() - make_interval(mins => ?)");
+                filterParams.add (olderThanMinutes);
+            }
+            //one statement per chunk: pick the chunk, free its seats, cancel its bookings
+            final String chunkQuery =
+                "WITH chunk AS (SELECT bid FROM Bookings WHERE status = 'Pending' AND bid > ?" + filter +
+                " ORDER BY bid LIMIT ? FOR UPDATE SKIP LOCKED), " +
+                "released AS (UPDATE ShowSeats SET bid = NULL WHERE bid IN (SELECT bid FROM chunk)) " +
+                "UPDATE Bookings b SET status = 'Cancelled' FROM chunk WHERE b.bid = chunk.bid RETURNING b.bid, b.sid";
+
+            long start = System.nanoTime ();
+            long cancelled = 0;
+            long lastBid = Long.MIN_VALUE;
+            int chunks = 0;
+            while (true) {
+                final List<Object> params = new ArrayList<Object>();
+                params.add (lastBid);
+                params.addAll (filterParams);
+                params.add (chunkSize);
+                ColumnarResult chunk = esql.runInTransaction (new SessionWork<ColumnarResult>() {
+                    public ColumnarResult run() throws SQLException {
+                        return esql.executeQueryAndReturnColumns (chunkQuery, params.toArray ());
+                    }
+                });
+                for (int i = 0; i < chunk.rowCount (); ++i) {
+                    lastBid = Math.max (lastBid, chunk.getLong (i, 0));
+                    esql.holds ().end (chunk.getString (i, 0));
+                    if (!chunk.isNull (i, 1)) esql.seatIndex ().invalidate (chunk.getString (i, 1));
+                }
+                cancelled += chunk.rowCount ();
+                chunks++;
+                double seconds = (System.nanoTime () - start) / 1e9;
+                if (progress != null && chunk.rowCount () > 0)
+                    progress.printf ("chunk %d: cancelled %d bookings so far (%.0f bookings/s)%n",
+                        chunks, cancelled, cancelled / Math.max (seconds, 1e-9));
+                if (chunk.rowCount () < chunkSize) break;
+            }
+            return cancelled;
+        }
+    }//end BulkCanceller
+
+    public HoldManager holds() {
+        return _holds;
+    }
+
+    /**
+     * Cancels Pending bookings whose lease of -Dticketmaster.holds.ttlSeconds ran
+     * out, tracked in a timing wheel while the manager runs.
+     */
+    public static class HoldManager {
+        static final String RELEASE =
+            "WITH expired AS (UPDATE Bookings SET status = 'Cancelled' WHERE bid = ANY (?::bigint[]) AND status = 'Pending' RETURNING bid, sid), " +
+            "released AS (UPDATE ShowSeats ss SET bid = NULL FROM expired e WHERE ss.bid = e.bid) " +
+            "SELECT bid, sid FROM expired";
+
+        /**
+         * Hierarchical timing wheel: LEVELS wheels of SLOTS slots, a slot of level l
+         * spanning SLOTS^l ticks. Timers cascade down a level as the wheel below wraps.
+         */
+        static class TimingWheel {
+            static final int BITS = 6;
+            static final int SLOTS = 1 << BITS;
+            static final int LEVELS = 4;
+
+            static class Timer {
+                final String bid;
+                final long deadline;
+
+                Timer(String bid, long deadline) {
+                    this.bid = bid;
+                    this.deadline = deadline;
+                }
+            }
+
+            private final List<ArrayDeque<Timer>> slots = new ArrayList<ArrayDeque<Timer>>();
+            private long now;
+            private int size = 0;
+
+            TimingWheel(long now) {
+                this.now = now;
+                for (int i = 0; i < LEVELS * SLOTS; ++i) slots.add (new ArrayDeque<Timer>());
+            }
+
+            long now() {
+                return now;
+            }
+
+            int size() {
+                return size;
+            }
+
+            /**
+             * Adds a timer due at tick deadline, at the earliest the next tick.
+             */
+            void schedule(String bid, long deadline) {
+                insert (new Timer (bid, Math.max (deadline, now + 1)));
+                size++;
+            }
+
+            private void insert(Timer timer) {
+                long delta = timer.deadline - now;
+                int level = 0;
+                while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+                int slot = (int) ((timer.deadline >>> (BITS * level)) & (SLOTS - 1));
+                slots.get (level * SLOTS + slot).add (timer);
+            }
+
+            /**
+             * Moves the wheel forward to tick to.
+             *
+             * @param expired receives the timers that came due
+             */
+            void advance(long to, List<Timer> expired) {
+                while (now < to) {
+                    now++;
+                    //higher levels first, so a timer can cascade down several levels in one tick
+                    for (int level = LEVELS - 1; level > 0; --level) {
+                        if ((now & ((1L << (BITS * level)) - 1)) != 0) continue;
+                        ArrayDeque<Timer> slot = slots.get (level * SLOTS + (int) ((now >>> (BITS * level)) & (SLOTS - 1)));
+                        List<Timer> cascading = new ArrayList<Timer>(slot);
+                        slot.clear ();
+                        for (Timer timer : cascading) insert (timer);
+                    }
+                    ArrayDeque<Timer> due = slots.get ((int) (now & (SLOTS - 1)));
+                    List<Timer> later = new ArrayList<Timer>();
+                    for (Timer timer : due) {
+                        if (timer.deadline <= now) expired.add (timer);
+                        else later.add (timer);
+                    }
+                    due.clear ();
+                    due.addAll (later);
+                }
+                size -= expired.size ();
+            }
+        }
+
+        private final Ticketmaster esql;
+        private final long ttlMillis = Long.getLong ("ticketmaster.holds.ttlSeconds", 900L) * 1000;
+        private final long tickMillis = Math.max (1L, Long.getLong ("ticketmaster.holds.tickMillis", 1000L));
+        private final int batchSize = Math.max (1, Integer.getInteger ("ticketmaster.holds.batchSize", 100));
+        private final long origin = System.currentTimeMillis ();
+        private final TimingWheel wheel = new TimingWheel (0);
+        //current deadline of every lease; timers whose deadline no longer matches are stale
+        private final ConcurrentHashMap<String, Long> leases = new ConcurrentHashMap<String, Long>();
+        private final AtomicLong leased = new AtomicLong ();
+        private final AtomicLong released = new AtomicLong ();
+        private final AtomicLong skipped = new AtomicLong ();
+        private volatile boolean stopped = false;
+        private volatile Thread worker = null;
+
+        HoldManager(Ticketmaster esql) {
+            this.esql = esql;
+        }
+
+        private long tick(long millis) {
+            return (millis - origin) / tickMillis;
+        }
+
+        /**
+         * Starts the lease of a booking that was just made Pending.
+         */
+        public void lease(String bid) {
+            lease (bid, System.currentTimeMillis () + ttlMillis);
+        }
+
+        void lease(String bid, long expiresAt) {
+            //nothing would ever advance the wheel
+            if (worker == null || stopped) return;
+            //round up, a lease never ends early
+            long deadline = tick (expiresAt + tickMillis - 1);
+            leases.put (bid, deadline);
+            synchronized (wheel) {
+                wheel.schedule (bid, deadline);
+            }
+            leased.incrementAndGet ();
+        }
+
+        /**
+         * Forgets the lease of a booking that was paid, cancelled or deleted,
+         * once the current transaction commits.
+         */
+        public void end(final String bid) {
+            esql.afterCommit (new Runnable () {
+                public void run() {
+                    leases.remove (bid);
+                }
+            });
+        }
+
+        /**
+         * Leases the bookings that are already Pending, counting their TTL
+         * from their booking time, and starts releasing expired ones.
+         */
+        void start() {
+            if (ttlMillis <= 0 || worker != null) return;
+            worker = new Thread (new Runnable () {
+                public void run() {
+                    try {
+                        loadPending ();
+                    } catch (SQLException e) {
+                        System.err.println ("Unable to load the pending bookings: " + e.getMessage ());
+                    }
+                    while (!stopped) {
+                        try {
+                            Thread.sleep (tickMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        releaseExpired ();
+                    }
+                }
+            }, "ticketmaster-holds");
+            worker.setDaemon (true);
+            worker.start ();
+        }
+
+        void stop() {
+            stopped = true;
+            if (worker != null) worker.interrupt ();
+        }
+
+        private void loadPending() throws SQLException {
+            final long now = System.currentTimeMillis ();
+            esql.executeQueryAndStream (
+                "SELECT bid, GREATEST(0, EXTRACT(EPOCH FROM (bdatetime + ?::interval - now())) * 1000)::bigint " +
+                "FROM Bookings WHERE status = 'Pending'", FETCH_SIZE, new RowCallback () {
+                    public void row(ResultSet rs) throws SQLException {
+                        lease (rs.getString (1), now + rs.getLong (2));
+                    }
+                }, ttlMillis + " milliseconds");
+        }
+
+        /**
+         * Cancels the bookings whose lease ran out, batchSize per transaction.
+         */
+        void releaseExpired() {
+            List<TimingWheel.Timer> due = new ArrayList<TimingWheel.Timer>();
+            synchronized (wheel) {
+                wheel.advance (tick (System.currentTimeMillis ()), due);
+            }
+            List<String> expired = new ArrayList<String>();
+            for (TimingWheel.Timer timer : due) {
+                Long deadline = leases.get (timer.bid);
+                if (deadline != null && deadline == timer.deadline && leases.remove (timer.bid, deadline)) expired.add (timer.bid);
+            }
+            for (int from = 0; from < expired.size () && !stopped; from += batchSize) {
+                List<String> batch = expired.subList (from, Math.min (expired.size (), from + batchSize));
+                try {
+                    release (batch);
+                } catch (SQLException e) {
+                    System.err.println ("Unable to release expired holds, retrying: " + e.getMessage ());
+                    //try again in ten ticks
+                    for (String bid : batch) lease (bid, System.currentTimeMillis () + 10 * tickMillis);
+                }
+            }
+        }
+
+        private void release(List<String> bids) throws SQLException {
+            final String array = "{" + String.join (",", bids) + "}";
+            ColumnarResult cancelled = esql.runInTransaction (new SessionWork<ColumnarResult>() {
+                public ColumnarResult run() throws SQLException {
+                    return esql.executeQueryAndReturnColumns (RELEASE, array);
+                }
+            });
+            for (int row = 0; row < cancelled.rowCount (); ++row) {
+                if (!cancelled.isNull (row, 1)) esql.seatIndex ().invalidate (cancelled.getString (row, 1));
+            }
+            released.addAndGet (cancelled.rowCount ());
+            skipped.addAndGet (bids.size () - cancelled.rowCount ());
+        }
+
+        public String getStatistics() {
+            int outstanding;
+            synchronized (wheel) {
+                outstanding = wheel.size ();
+            }
+            return String.format ("%s, %d leased, %d outstanding, %d released, %d already paid or cancelled",
+                ttlMillis <= 0 ? "disabled" : "ttl " + ttlMillis / 1000 + " s", leased.get (), outstanding, released.get (), skipped.get ());
+        }
+    }//end HoldManager
+
+    //parameters bid, new ssid, sid, old ssid; takes the new seat while it is free and in the bucket of the old one
+    static final String SWAP_SEAT =
+        "UPDATE ShowSeats ss SET bid = ? FROM ShowSeats old " +
+        "WHERE ss.ssid = ? AND ss.sid = ? AND ss.bid IS NULL AND old.ssid = ? AND old.sid = ss.sid AND ss.price = old.price " +
+        //same theater, compared like the seat index buckets
+        "AND (SELECT tid FROM CinemaSeats WHERE csid = ss.csid) IS NOT DISTINCT FROM (SELECT tid FROM CinemaSeats WHERE csid = old.csid)";
+
+    /**
+     * Moves booking bid from seat ssid to the free seat new_ssid of the same
+     * show, theater and price, in one transaction.
+     *
+     * @param bid the booking that holds ssid
+     * @param sid the show both seats belong to
+     * @param ssid the seat given up
+     * @param new_ssid the seat taken instead
+     * @throws SeatsTakenException when new_ssid is no longer free or not like ssid
+     * @throws java.sql.SQLException when ssid is not held by bid or the swap failed
+     */
+    public void swapSeat (final String bid, final String sid, final String ssid, final String new_ssid) throws SQLException {
+        runInTransaction (new SessionWork<Void>() {
+            public Void run() throws SQLException {
+                int taken = executeUpdate (SWAP_SEAT, bid, new_ssid, sid, ssid);
+                if (taken != 1) throw new SeatsTakenException (new boolean[] { false });
+                int released = executeUpdate ("UPDATE ShowSeats SET bid = NULL WHERE ssid = ? AND bid = ?", ssid, bid);
+                if (released != 1) throw new SQLException ("Seat " + ssid + " is not held by booking " + bid);
+                afterCommit (new Runnable() {
+                    public void run() {
+                        _seats.update (sid, Arrays.asList (ssid), true);
+                        _seats.update (sid, Arrays.asList (new_ssid), false);
+                    }
+                });
+                return null;
+            }
+        });
+    }//end swapSeat
+
+    /**
+     * Orders numeric ids by value and anything else as text.
+     */
+    static int compareIds(String a, String b) {
+        try {
+            return Long.compare (Long.parseLong (a), Long.parseLong (b));
+        } catch (NumberFormatException e) {
+            return a.compareTo (b);
+        }
+    }
+
+    /**
+     * Receives the rows of executeQueryAndStream one at a time.
+     */
+    public interface RowCallback {
+        /**
+         * @param rs the result set positioned on the current row; do not move it
+         */
+        void row(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT) through a
+     * cursor, handing every row to callback as it arrives.
+     *
+     * @param query the input query string, using ? for parameters
+     * @param fetchSize the number of rows fetched per round trip
+     * @param callback called once for every row
+     * @param params the values bound to the parameters of query
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndStream (String query, int fetchSize, RowCallback callback, Object... params) throws SQLException {
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        //the driver only uses a cursor inside a transaction
+        boolean autoCommit = true;
+        PreparedStatement stmt = null;
+        try {
+            autoCommit = conn.conn.getAutoCommit ();
+            if (autoCommit) conn.conn.setAutoCommit (false);
+            stmt = conn.statements.prepare (query, params);
+            stmt.setFetchSize (fetchSize);
+
+            ResultSet rs = stmt.executeQuery ();
+            int rowCount = 0;
+            while (rs.next ()){
+                callback.row (rs);
+                ++rowCount;
+            }//end while
+            rs.close ();
+            if (autoCommit) conn.conn.commit ();
+            rows = rowCount;
+            return rowCount;
+        } catch (SQLException e) {
+            conn.failed (e);
+            if (autoCommit && !conn.broken) conn.conn.rollback ();
+            throw e;
+        } finally {
+            try {
+                if (stmt != null) stmt.setFetchSize (0);
+                if (autoCommit && !conn.broken) conn.conn.setAutoCommit (true);
+            } catch (SQLException e) {
+                conn.broken = true;
+            }
+            release (conn);
+            _metrics.statement (query, start, rows);
+        }
+    }//end executeQueryAndStream
+
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and outputs the results to
+     * standard out.
+     *
+     * @param query the input query string, using ? for parameters
+     * @param params the values bound to the parameters of query
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+        return executeQueryAndPrintResult (System.out, query, params);
+    }
+
+    /**
+     * Same as executeQueryAndPrintResult, writing the results to target.
+     */
+    public int executeQueryAndPrintResult (PrintStream target, String query, Object... params) throws SQLException {
+        PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (target), 1 << 16));
+        try {
+            return executeQueryAndStream (query, FETCH_SIZE, new ResultPrinter (out, FETCH_SIZE), params);
+        } finally {
+            out.flush ();
+        }
+    }
+
+    /**
+     * Writes rows tab separated, with a header line of column names before
+     * the first row, flushing after the first row and then every flushEvery rows.
+     */
+    static class ResultPrinter implements RowCallback {
+        private final PrintWriter out;
+        private final int flushEvery;
+        private int numCol = -1;
+        private int rowCount = 0;
+
+        ResultPrinter(PrintWriter out, int flushEvery) {
+            this.out = out;
+            this.flushEvery = Math.max (1, flushEvery);
+        }
+
+        //iterates through the result set and output them to standard out.
+        public void row(ResultSet rs) throws SQLException {
+            if (numCol < 0){
+                /*
+                 *  obtains the metadata object for the returned result set.  The metadata
+                 *  contains row and column info.
+                 */
+                ResultSetMetaData rsmd = rs.getMetaData ();
+                numCol = rsmd.getColumnCount ();
+                for(int i = 1; i <= numCol; i++){
+                    out.print(rsmd.getColumnName(i));
+                    out.print('\t');
+                }
+                out.println();
+            }
+            for (int i=1; i<=numCol; ++i){
+                out.print (rs.getString (i));
+                out.print ('\t');
+            }
+            out.println ();
+            //flush each fetched batch so the first rows show up right away
+            if (rowCount++ % flushEvery == 0) out.flush ();
+        }
+    }
+    
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and returns the results as
+     * a list of records. Each record in turn is a list of attribute values
+     * 
+     * @param query the input query string, using ? for parameters
+     * @param params the values bound to the parameters of query
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+        return executeQueryAndReturnColumns (query, params).asRows (); 
+    }//end executeQueryAndReturnResult
+
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and returns the results column by column.
+     *
+     * @param query the input query string, using ? for parameters
+     * @param params the values bound to the parameters of query
+     * @return the query result
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ColumnarResult executeQueryAndReturnColumns (final String query, final Object... params) throws SQLException {
+        if (journaledAlone (query)) {
+            return runInTransaction ("READ COMMITTED", new SessionWork<ColumnarResult>() {
+                public ColumnarResult run() throws SQLException {
+                    return executeQueryAndReturnColumns (query, params);
+                }
+            });
+        }
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        try {
+            //fetches the cached statement object and issues the query instruction
+            ResultSet rs = conn.statements.prepare (query, params).executeQuery ();
+            ColumnarResult result = ColumnarResult.from (rs);
+            rs.close ();
+            rows = result.rowCount ();
+            //UPDATE ... RETURNING comes through here too
+            written (query, params, result.rowCount ());
+            return result;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement (query, start, rows);
+        }
+    }//end executeQueryAndReturnColumns
+    
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and returns the number of results
+     * 
+     * @param query the input query string, using ? for parameters
+     * @param params the values bound to the parameters of query
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery (String query, Object... params) throws SQLException {
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        try {
+            //fetches the cached statement object
+            PreparedStatement stmt = conn.statements.prepare (query, params);
+
+            //issues the query instruction
+            ResultSet rs = stmt.executeQuery ();
+
+            int rowCount = 0;
+
+            //iterates through the result set and count nuber of results.
+            if(rs.next()){
+                rowCount++;
+            }//end while
+            rs.close ();
+            rows = rowCount;
+            return rowCount;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement (query, start, rows);
+        }
+    }
+    
+    /**
+     * Method to fetch the last value from sequence. This
+     * method issues the query to the DBMS and returns the current 
+     * value of sequence used for autogenerated keys. currval is local to
+     * a database session, so call this inside the runOnSession block that
+     * did the insert.
+     * 
+     * @param sequence name of the DB sequence
+     * @return current value of a sequence
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    
+    public int getCurrSeqVal(String sequence) throws SQLException {
+        long start = System.nanoTime ();
+        long rows = -1;
+        PooledConnection conn = acquire ();
+        try {
+            ResultSet rs = conn.statements.prepare ("SELECT currval(?)", sequence).executeQuery ();
+            int value = -1;
+            if (rs.next()) value = rs.getInt(1);
+            rs.close ();
+            rows = 1;
+            return value;
+        } catch (SQLException e) {
+            conn.failed (e);
+            throw e;
+        } finally {
+            release (conn);
+            _metrics.statement ("SELECT currval(?)", start, rows);
+        }
+    }
+
+    /**
+     * Method to close the pooled physical connections if they are open.
+     */
+    public void cleanup(){
+        try{
+            if (this._seats != null){
+                this._seats.stop ();
+            }//end if
+            if (this._users != null){
+                this._users.stop ();
+            }//end if
+            this._holds.stop ();
+            if (this._replicas != null){
+                this._replicas.stop ();
+            }//end if
+            this._partitions.stop ();
+            if (this._journal != null){
+                this._journal.close ();
+            }//end if
+            if (this._mbeanName != null){
+                ManagementFactory.getPlatformMBeanServer ().unregisterMBean (this._mbeanName);
+            }//end if
+            if (this._pool != null){
+                this._pool.close ();
+            }//end if
+        }catch (Exception e){
+             // ignored.
+        }//end try
+    }//end cleanup
+
+    /**
+     * Microbenchmarks for the JDBC helper layer, run with --bench.
+     */
+    static class MicroBenchmark {
+        interface Body {
+            Object run() throws Exception;
+        }
+
+        static final long WARMUP_MILLIS = Long.getLong ("ticketmaster.bench.warmupMillis", 2000L);
+        static final long ITERATION_MILLIS = Long.getLong ("ticketmaster.bench.iterationMillis", 1000L);
+        static final int ITERATIONS = Integer.getInteger ("ticketmaster.bench.iterations", 5);
+        static final int ROWS = Integer.getInteger ("ticketmaster.bench.rows", 10000);
+
+        //results are folded into this field so the JIT cannot drop the work
+        static volatile int sink;
+
+        private final PrintStream out;
+
+        MicroBenchmark(PrintStream out) {
+            this.out = out;
+        }
+
+        void measure(String name, Body body) throws Exception {
+            long end = System.currentTimeMillis () + WARMUP_MILLIS;
+            while (System.currentTimeMillis () < end) consume (body.run ());
+
+            double[] rates = new double[ITERATIONS];
+            long ops = 0;
+            long bytesBefore = allocatedBytes ();
+            for (int it = 0; it < ITERATIONS; ++it) {
+                long n = 0;
+                long start = System.nanoTime ();
+                long stop = start + ITERATION_MILLIS * 1000000L;
+                long now;
+                do {
+                    consume (body.run ());
+                    n++;
+                } while ((now = System.nanoTime ()) < stop);
+                rates[it] = n / ((now - start) / 1e9);
+                ops += n;
+            }
+            long bytes = allocatedBytes () - bytesBefore;
+
+            double mean = 0;
+            for (double r : rates) mean += r / rates.length;
+            double var = 0;
+            for (double r : rates) var += (r - mean) * (r - mean) / rates.length;
+            out.printf ("%-45s %14.1f ops/s  +- %5.1f%%  %12s B/op%n", name, mean,
+                mean == 0 ? 0.0 : 100 * Math.sqrt (var) / mean,
+                bytes < 0 ? "n/a" : String.format ("%.1f", (double) bytes / ops));
+        }
+
+        private static void consume(Object o) {
+            sink += o == null ? 0 : o.hashCode ();
+        }
+
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean ();
+            if (bean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes (Thread.currentThread ().getId ());
+            return Long.MIN_VALUE;
+        }
+
+        /**
+         * Runs the benchmarks against Proxy stubs, without a database.
+         */
+        void runStubSuite() throws Exception {
+            out.printf ("Stub suite, %d rows per result, %d x %d ms after %d ms warm-up%n",
+                ROWS, ITERATIONS, ITERATION_MILLIS, WARMUP_MILLIS);
+            measure ("ColumnarResult.from (bookings)", new Body () {
+                public Object run() throws Exception {
+                    return ColumnarResult.from (bookingRows (ROWS)).rowCount ();
+                }
+            });
+            measure ("ColumnarResult.asRows getString (bookings)", new Body () {
+                final ColumnarResult result = ColumnarResult.from (bookingRows (ROWS));
+
+                public Object run() {
+                    int h = 0;
+                    for (List<String> row : result.asRows ())
+                        for (String value : row) h += value == null ? 0 : value.length ();
+                    return h;
+                }
+            });
+            measure ("ResultPrinter (bookings)", new Body () {
+                public Object run() throws Exception {
+                    PrintWriter sinkWriter = new PrintWriter (new BufferedWriter (nullWriter (), 1 << 16));
+                    ResultPrinter printer = new ResultPrinter (sinkWriter, FETCH_SIZE);
+                    ResultSet rs = bookingRows (ROWS);
+                    int n = 0;
+                    while (rs.next ()) {
+                        printer.row (rs);
+                        n++;
+                    }
+                    sinkWriter.flush ();
+                    return n;
+                }
+            });
+            measure ("getSaltString", new Body () {
+                public Object run() {
+                    return getSaltString ();
+                }
+            });
+            final StatementCache cache = new StatementCache (stubConnection (), STATEMENT_CACHE_SIZE);
+            measure ("StatementCache.prepare (AddBooking insert)", new Body () {
+                public Object run() throws Exception {
+                    return cache.prepare ("INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email) VALUES (?, ?, ?, ?, ?, ?)",
+                        "1001", "Pending", "10/17/26 7:30:00 PM", "2", "42", "jane@example.com");
+                }
+            });
+            measure ("StatementCache.prepare (ListMovieAndShowInfo)", new Body () {
+                public Object run() throws Exception {
+                    return cache.prepare (
+                        "SELECT m.title as Title, round((m.duration + 0.0)/3600, 2) as Duration, s.sdate as Showdate, s.sttime FROM Plays p, Shows s, Cinemas c, Theaters t, Movies m WHERE c.cid = t.cid AND t.tid = p.tid AND p.sid = s.sid AND s.mvid = m.mvid " +
+                        "AND m.mvid = ? AND c.cid = ? AND s.sdate > ? AND s.sdate < ?", "7", "3", "1/1/2020", "12/31/2020");
+                }
+            });
+        }
+
+        /**
+         * Measures query against the database, materialized and printed.
+         */
+        void runQuery(final Ticketmaster esql, final String query) throws Exception {
+            out.println ("Live query: " + query);
+            measure ("executeQueryAndReturnColumns", new Body () {
+                public Object run() throws Exception {
+                    return esql.executeQueryAndReturnColumns (query).rowCount ();
+                }
+            });
+            measure ("executeQueryAndStream + ResultPrinter", new Body () {
+                public Object run() throws Exception {
+                    PrintWriter sinkWriter = new PrintWriter (new BufferedWriter (nullWriter (), 1 << 16));
+                    int n = esql.executeQueryAndStream (query, FETCH_SIZE, new ResultPrinter (sinkWriter, FETCH_SIZE));
+                    sinkWriter.flush ();
+                    return n;
+                }
+            });
+        }
+
+        static Writer nullWriter() {
+            return new Writer () {
+                public void write(char[] cbuf, int off, int len) {
+                }
+
+                public void flush() {
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        /**
+         * @return a stub result set shaped like Bookings: bid, status, bdatetime (date), seats, sid, email
+         */
+        static ResultSet bookingRows(final int rows) {
+            final String[] names = { "bid", "status", "bdatetime", "seats", "sid", "email" };
+            final int[] types = { Types.INTEGER, Types.VARCHAR, Types.DATE, Types.INTEGER, Types.INTEGER, Types.VARCHAR };
+            final String[] statuses = { "Paid", "Pending", "Cancelled" };
+            final java.sql.Date day = java.sql.Date.valueOf ("2026-10-17");
+            final ResultSetMetaData rsmd = stub (ResultSetMetaData.class, new InvocationHandler () {
+                public Object invoke(Object proxy, Method m, Object[] a) {
+                    if (m.getName ().equals ("getColumnCount")) return names.length;
+                    if (m.getName ().equals ("getColumnName") || m.getName ().equals ("getColumnLabel")) return names[(Integer) a[0] - 1];
+                    if (m.getName ().equals ("getColumnType")) return types[(Integer) a[0] - 1];
+                    throw new UnsupportedOperationException (m.getName ());
+                }
+            });
+            return stub (ResultSet.class, new InvocationHandler () {
+                int row = 0;
+
+                public Object invoke(Object proxy, Method m, Object[] a) {
+                    String name = m.getName ();
+                    if (name.equals ("next")) return ++row <= rows;
+                    if (name.equals ("getMetaData")) return rsmd;
+                    if (name.equals ("wasNull")) return false;
+                    if (name.equals ("close")) return null;
+                    int col = (Integer) a[0];
+                    if (name.equals ("getInt")) return col == 4 ? 1 + row % 4 : row;
+                    if (name.equals ("getLong")) return (long) row;
+                    if (name.equals ("getDate")) return day;
+                    if (name.equals ("getString")) {
+                        switch (col) {
+                            case 2: return statuses[row % statuses.length];
+                            case 3: return day.toString ();
+                            case 4: return Integer.toString (1 + row % 4);
+                            case 6: return "user" + (row % 500) + "@example.com";
+                            default: return Integer.toString (row);
+                        }
+                    }
+                    throw new UnsupportedOperationException (name);
+                }
+            });
+        }
+
+        /**
+         * @return a stub connection whose prepared statements accept and ignore parameters
+         */
+        static Connection stubConnection() {
+            final InvocationHandler statement = new InvocationHandler () {
+                public Object invoke(Object proxy, Method m, Object[] a) {
+                    if (m.getName ().equals ("isClosed")) return false;
+                    if (m.getName ().equals ("hashCode")) return System.identityHashCode (proxy);
+                    if (m.getName ().equals ("equals")) return proxy == a[0];
+                    return null;
+                }
+            };
+            return stub (Connection.class, new InvocationHandler () {
+                public Object invoke(Object proxy, Method m, Object[] a) {
+                    if (m.getName ().equals ("prepareStatement")) return stub (PreparedStatement.class, statement);
+                    throw new UnsupportedOperationException (m.getName ());
+                }
+            });
+        }
+
+        static <T> T stub(Class<T> type, InvocationHandler handler) {
+            return type.cast (Proxy.newProxyInstance (Ticketmaster.class.getClassLoader (), new Class<?>[] { type }, handler));
+        }
+    }//end MicroBenchmark
+
+    /**
+     * Runs the menu operations headless, one CSV command per line, e.g.
+     * 1,Jane,Doe,jane@example.com,5551234. With a group size above one, that
+     * many commands share a transaction, each in its own savepoint.
+     */
+    static class BatchRunner {
+        /**
+         * One command line of the input.
+         */
+        static class Command {
+            final long lineNo;
+            final List<String> fields;
+
+            Command(long lineNo, List<String> fields) {
+                this.lineNo = lineNo;
+                this.fields = fields;
+            }
+        }
+
+        private final Ticketmaster esql;
+        private final int groupSize;
+        private final boolean quiet;
+        private final PrintStream report;
+        //where the operations print, nowhere when quiet
+        private final PrintStream out;
+
+        BatchRunner(Ticketmaster esql, int groupSize, boolean quiet) {
+            this.esql = esql;
+            this.groupSize = Math.max (1, groupSize);
+            this.quiet = quiet;
+            this.report = System.out;
+            this.out = quiet ? new PrintStream (new OutputStream () {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            }) : System.out;
+        }
+
+        /**
+         * Runs every command read from input and prints a throughput summary.
+         */
+        void run(final BufferedReader input) throws Exception {
+            final long[] counts = new long[3]; //commands, failed, transactions
+            long start = System.nanoTime ();
+            esql.runOnSession (new SessionWork<Void>() {
+                public Void run() throws SQLException {
+                    try {
+                        runCommands (input, counts);
+                    } catch (IOException e) {
+                        throw new SQLException ("Unable to read commands: " + e.getMessage (), e);
+                    }
+                    return null;
+                }
+            });
+            double seconds = (System.nanoTime () - start) / 1e9;
+            report.printf ("Batch finished: %d commands, %d failed, %d transactions in %.3f s (%.1f commands/s)%n",
+                counts[0], counts[1], counts[2], seconds, counts[0] / Math.max (seconds, 1e-9));
+        }
+
+        private void runCommands(BufferedReader input, long[] counts) throws SQLException, IOException {
+            List<Command> group = new ArrayList<Command>();
+            String line;
+            long lineNo = 0;
+            while ((line = input.readLine ()) != null) {
+                lineNo++;
+                if (line.trim ().isEmpty () || line.trim ().startsWith ("#")) continue;
+                counts[0]++;
+                Command command = new Command (lineNo, parseCsv (line));
+                if (groupSize == 1) {
+                    if (!runCommand (command, out, report)) counts[1]++;
+                    counts[2]++;
+                    continue;
+                }
+                group.add (command);
+                if (group.size () == groupSize) runGroup (group, counts);
+            }
+            if (!group.isEmpty ()) runGroup (group, counts);
+        }
+
+        /**
+         * Runs one command and reports its failure on report.
+         *
+         * @return whether it succeeded
+         */
+        private boolean runCommand(Command command, PrintStream out, PrintStream report) {
+            PooledConnection session = esql._session.get ();
+            int errors = session.errors;
+            scriptedInput.set (command.fields.subList (1, command.fields.size ()).iterator ());
+            try {
+                int op = Integer.parseInt (command.fields.get (0).trim ());
+                if (op < 1 || op > 14 || !dispatch (esql, op, out)) throw new IllegalArgumentException ("unknown operation " + op);
+            } catch (Exception e) {
+                session.errors++;
+                report.println ("line " + command.lineNo + ": " + e.getMessage ());
+            } finally {
+                scriptedInput.remove ();
+            }
+            return session.errors == errors;
+        }
+
+        /**
+         * Runs the commands of group as one transaction, each in a savepoint,
+         * rerunning the group on serialization failures and deadlocks. Empties group.
+         */
+        private void runGroup(final List<Command> group, long[] counts) throws SQLException {
+            final PooledConnection session = esql._session.get ();
+            final ByteArrayOutputStream printed = new ByteArrayOutputStream ();
+            final ByteArrayOutputStream reported = new ByteArrayOutputStream ();
+            int failed;
+            session.savepoints = true;
+            try {
+                failed = esql.runInTransaction (new SessionWork<Integer>() {
+                    public Integer run() throws SQLException {
+                        printed.reset ();
+                        reported.reset ();
+                        PrintStream attempt = quiet ? out : new PrintStream (printed);
+                        PrintStream problems = new PrintStream (reported);
+                        int failed = 0;
+                        for (Command command : group) {
+                            Savepoint savepoint = session.conn.setSavepoint ();
+                            int hooks = session.afterCommit.size ();
+                            session.retry = null;
+                            if (runCommand (command, attempt, problems)) {
+                                session.conn.releaseSavepoint (savepoint);
+                                continue;
+                            }
+                            //the transaction cannot commit anymore, run the group again
+                            if (session.retry != null) throw session.retry;
+                            failed++;
+                            session.conn.rollback (savepoint);
+                            session.afterCommit.subList (hooks, session.afterCommit.size ()).clear ();
+                        }
+                        attempt.flush ();
+                        return failed;
+                    }
+                });
+                out.print (printed.toString ());
+            } catch (SQLException e) {
+                if (session.broken) throw e;
+                failed = group.size ();
+                reported.reset ();
+                report.println ("lines " + group.get (0).lineNo + "-" + group.get (group.size () - 1).lineNo + ": rolled back, " + e.getMessage ());
+            } finally {
+                session.savepoints = false;
+                session.retry = null;
+            }
+            out.flush ();
+            report.print (reported.toString ());
+            counts[1] += failed;
+            counts[2]++;
+            group.clear ();
+        }
+
+        /**
+         * Splits one CSV line; fields may be double quoted, with "" for a quote.
+         */
+        static List<String> parseCsv(String line) {
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder ();
+            boolean quoted = false;
+            for (int i = 0; i < line.length (); ++i) {
+                char c = line.charAt (i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length () && line.charAt (i + 1) == '"') {
+                        field.append ('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append (c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add (field.toString ());
+                    field.setLength (0);
+                } else {
+                    field.append (c);
+                }
+            }
+            fields.add (field.toString ());
+            return fields;
+        }
+    }//end BatchRunner
+
+    /**
+     * Bulk loads the catalog CSV files of a directory in one transaction,
+     * run with --import <dir>.
+     */
+    static class CatalogLoader {
+        //load order, parents first
+        static final String[] TABLES = { "Movies", "Shows", "Plays", "ShowSeats" };
+        //child table, column, parent table; the parent column has the same name
+        static final String[][] FOREIGN_KEYS = {
+            { "Shows", "mvid", "Movies" },
+            { "Plays", "sid", "Shows" },
+            { "Plays", "tid", "Theaters" },
+            { "ShowSeats", "sid", "Shows" },
+            { "ShowSeats", "csid", "CinemaSeats" },
+            { "ShowSeats", "bid", "Bookings" },
+        };
+
+        private final Ticketmaster esql;
+        private final PrintStream report;
+
+        CatalogLoader(Ticketmaster esql, PrintStream report) {
+            this.esql = esql;
+            this.report = report;
+        }
+
+        static String stage(String table) {
+            return "ticketmaster_stage_" + table.toLowerCase ();
+        }
+
+        /**
+         * @return whether sql reads or writes a staging table, which only
+         *         exists during the import
+         */
+        static boolean staged(String sql) {
+            return sql.contains ("ticketmaster_stage_");
+        }
+
+        /**
+         * Loads every known file found in dir.
+         */
+        void run(final File dir) throws SQLException {
+            final Map<String, List<String>> staged = new LinkedHashMap<String, List<String>>();
+            final long[] inserted = new long[TABLES.length];
+            long start = System.nanoTime ();
+            esql.runOnSession (new SessionWork<Void>() {
+                public Void run() throws SQLException {
+                    return esql.runInTransaction (new SessionWork<Void>() {
+                        public Void run() throws SQLException {
+                            for (String table : TABLES) {
+                                File file = new File (dir, table.toLowerCase () + ".csv");
+                                if (file.isFile ()) staged.put (table, load (table, file));
+                            }
+                            if (staged.isEmpty ()) throw new SQLException ("No movies.csv, shows.csv, plays.csv or showseats.csv in " + dir);
+                            validate (staged);
+                            if (staged.containsKey ("Shows") && esql.partitions ().partitioned ()) {
+                                ColumnarResult range = esql.executeQueryAndReturnColumns ("SELECT min(sdate)::text, max(sdate)::text FROM " + stage ("Shows"));
+                                if (!range.isNull (0, 0)) esql.partitions ().cover (range.getString (0, 0), range.getString (0, 1));
+                            }
+                            for (int i = 0; i < TABLES.length; ++i) {
+                                List<String> columns = staged.get (TABLES[i]);
+                                if (columns == null) continue;
+                                if (TABLES[i].equals ("ShowSeats") && !columns.contains ("sdate") && esql.partitions ().partitioned ()) {
+                                    //partitioned ShowSeats rows carry the date of their show
+                                    esql.executeUpdate ("UPDATE " + stage ("ShowSeats") + " st SET sdate = s.sdate FROM Shows s WHERE s.sid = st.sid");
+                                    columns = new ArrayList<String>(columns);
+                                    columns.add ("sdate");
+                                }
+                                String list = String.join (", ", columns);
+                                String existing = "";
+                                for (String[] key : PartitionManager.KEYS) {
+                                    if (key[0].equals (TABLES[i]) && esql.partitions ().partitioned ()) {
+                                        //the primary key includes sdate, the key table knows the ids used in other months
+                                        existing = " WHERE NOT EXISTS (SELECT 1 FROM " + PartitionManager.keys (key[0]) + " k WHERE k." + key[1] + " = st." + key[1] + ")";
+                                    }
+                                }
+                                String merge = "INSERT INTO " + TABLES[i] + " (" + list + ") SELECT " + list +
+                                    " FROM " + stage (TABLES[i]) + " st" + existing + " ON CONFLICT DO NOTHING";
+                                if (!esql.journaling ()) {
+                                    inserted[i] = esql.executeUpdate (merge);
+                                } else {
+                                    //the staging tables are gone at replay, so the journal gets the inserted rows
+                                    ColumnarResult rows = esql.executeQueryAndReturnColumns (merge + " RETURNING " + list.replace (", ", "::text, ") + "::text");
+                                    inserted[i] = rows.rowCount ();
+                                    String[] values = new String[columns.size ()];
+                                    Arrays.fill (values, "?");
+                                    esql.journal ("INSERT INTO " + TABLES[i] + " (" + list + ") VALUES (" + String.join (", ", values) + ") ON CONFLICT DO NOTHING", rows);
+                                }
+                            }
+                            if (staged.containsKey ("Shows") || staged.containsKey ("ShowSeats")) {
+                                esql.afterCommit (new Runnable () {
+                                    public void run() {
+                                        esql.seatIndex ().invalidateAll ();
+                                    }
+                                });
+                            }
+                            return null;
+                        }
+                    });
+                }
+            });
+            for (int i = 0; i < TABLES.length; ++i) {
+                if (staged.containsKey (TABLES[i])) report.println ("  " + TABLES[i] + ": " + inserted[i] + " rows inserted");
+            }
+            //the planner has to see the new rows before the next queries
+            esql.executeUpdate ("ANALYZE " + String.join (", ", staged.keySet ()));
+            report.printf ("Import committed in %.1f s%n", (System.nanoTime () - start) / 1e9);
+        }
+
+        /**
+         * Copies file into the staging table of table.
+         *
+         * @return the columns named by the header line
+         */
+        private List<String> load(String table, File file) throws SQLException {
+            long start = System.nanoTime ();
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader (new FileReader (file), 1 << 16);
+                String header = reader.readLine ();
+                if (header == null) throw new SQLException (file + " is empty");
+                List<String> columns = new ArrayList<String>();
+                for (String column : BatchRunner.parseCsv (header)) {
+                    //the names go into the statements as they are
+                    if (!column.trim ().matches ("\\w+")) throw new SQLException (file + ": invalid column name '" + column + "'");
+                    columns.add (column.trim ().toLowerCase ());
+                }
+                esql.executeUpdate ("CREATE TEMP TABLE " + stage (table) + " (LIKE " + table + ") ON COMMIT DROP");
+                if (table.equals ("ShowSeats") && !columns.contains ("sdate") && esql.partitions ().partitioned ()) {
+                    //filled in from the shows after the copy
+                    esql.executeUpdate ("ALTER TABLE " + stage (table) + " ALTER COLUMN sdate DROP NOT NULL");
+                }
+                long rows = esql.copyIn ("COPY " + stage (table) + " (" + String.join (", ", columns) + ") FROM STDIN WITH (FORMAT csv)", reader);
+                report.printf ("  %s: %d rows staged in %.1f s%n", file.getName (), rows, (System.nanoTime () - start) / 1e9);
+                return columns;
+            } catch (IOException e) {
+                throw new SQLException ("Unable to read " + file + ": " + e.getMessage (), e);
+            } finally {
+                if (reader != null) try {
+                    reader.close ();
+                } catch (IOException e) {
+                    // ignored.
+                }
+            }
+        }
+
+        /**
+         * Checks every foreign key of the staged rows against the existing
+         * rows and the staged rows of the parent table.
+         */
+        private void validate(Map<String, List<String>> staged) throws SQLException {
+            List<String> problems = new ArrayList<String>();
+            for (String[] key : FOREIGN_KEYS) {
+                String child = key[0], column = key[1], parent = key[2];
+                if (!staged.containsKey (child) || !staged.get (child).contains (column)) continue;
+                String query = "SELECT count(*), min(c." + column + "::text) FROM " + stage (child) + " c WHERE c." + column + " IS NOT NULL " +
+                    "AND NOT EXISTS (SELECT 1 FROM " + parent + " p WHERE p." + column + " = c." + column + ")";
+                if (staged.containsKey (parent)) {
+                    query += " AND NOT EXISTS (SELECT 1 FROM " + stage (parent) + " p WHERE p." + column + " = c." + column + ")";
+                }
+                ColumnarResult orphans = esql.executeQueryAndReturnColumns (query);
+                long count = orphans.getLong (0, 0);
+                if (count > 0) {
+                    problems.add (count + " " + child + " row(s) reference a missing " + parent + "." + column + ", e.g. " + orphans.getString (0, 1));
+                }
+            }
+            if (!problems.isEmpty ()) {
+                for (String problem : problems) report.println ("  " + problem);
+                throw new SQLException ("Import rejected: " + problems.size () + " foreign key check(s) failed");
+            }
+        }
+    }//end CatalogLoader
+
+    /**
+     * Exports booking itineraries as CSV (through COPY) or JSON lines (through a
+     * cursor), run with --export <file|->.
+     */
+    public static class ItineraryExporter {
+        static final String ITINERARIES =
+            "SELECT b.email, b.bid, b.status, m.title, s.sdate, s.sttime, t.tname, cs.sno " +
+            "FROM Movies m, Shows s, Bookings b, ShowSeats ss, Theaters t, CinemaSeats cs " +
+            "WHERE s.sid = b.sid AND m.mvid = s.mvid AND b.bid = ss.bid AND cs.csid = ss.csid AND cs.tid = t.tid";
+
+        private final Ticketmaster esql;
+        private boolean json = false;
+        private String email = null;
+        private String status = null;
+        private String fromDate = null;
+        private String toDate = null;
+
+        public ItineraryExporter(Ticketmaster esql) {
+            this.esql = esql;
+        }
+
+        /** Write JSON lines instead of CSV. */
+        public ItineraryExporter asJsonLines(boolean json) {
+            this.json = json;
+            return this;
+        }
+
+        /** Only export the bookings of one user. */
+        public ItineraryExporter forEmail(String email) {
+            this.email = email;
+            return this;
+        }
+
+        /** Only export bookings with the given status. */
+        public ItineraryExporter withStatus(String status) {
+            this.status = status;
+            return this;
+        }
+
+        /** Only export shows on or after date. */
+        public ItineraryExporter from(String date) {
+            this.fromDate = date;
+            return this;
+        }
+
+        /** Only export shows on or before date. */
+        public ItineraryExporter to(String date) {
+            this.toDate = date;
+            return this;
+        }
+
+        /**
+         * COPY takes no parameters, so the filter values are inlined as
+         * string literals; the server casts them to the column types.
+         */
+        static String literal(String value) {
+            if (value.indexOf ('\u0000') >= 0) throw new IllegalArgumentException ("NUL in filter value");
+            return "'" + value.replace ("'", "''") + "'";
+        }
 
-        // issues the update instruction
-        stmt.executeUpdate (sql);
+        String query() {
+            StringBuilder query = new StringBuilder (ITINERARIES);
+            if (email != null) query.append (" AND b.email = ").append (literal (email));
+            if (status != null) query.append (" AND b.status = ").append (literal (status));
+            if (fromDate != null) query.append (" AND s.sdate >= ").append (literal (fromDate));
+            if (toDate != null) query.append (" AND s.sdate <= ").append (literal (toDate));
+            return query.append (" ORDER BY b.bid, cs.sno").toString ();
+        }
 
-        // close the instruction
-        stmt.close ();
-    }//end executeUpdate
+        /**
+         * Writes every matching itinerary row to out and flushes it.
+         *
+         * @return the number of rows written
+         */
+        public long run(final Writer out) throws SQLException, IOException {
+            long rows;
+            if (json) {
+                final IOException[] failed = new IOException[1];
+                try {
+                    rows = esql.executeQueryAndStream ("SELECT row_to_json(x)::text FROM (" + query () + ") x", FETCH_SIZE, new RowCallback () {
+                        public void row(ResultSet rs) throws SQLException {
+                            try {
+                                out.write (rs.getString (1));
+                                out.write ('\n');
+                            } catch (IOException e) {
+                                //stops the cursor instead of fetching rows nobody can receive
+                                failed[0] = e;
+                                throw new SQLException ("Unable to write the itinerary: " + e.getMessage (), e);
+                            }
+                        }
+                    });
+                } catch (SQLException e) {
+                    if (failed[0] != null) throw failed[0];
+                    throw e;
+                }
+            } else {
+                rows = esql.copyOut ("COPY (" + query () + ") TO STDOUT WITH (FORMAT csv, HEADER true)", out);
+            }
+            out.flush ();
+            return rows;
+        }
+    }//end ItineraryExporter
 
     /**
-     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-     * method issues the query to the DBMS and outputs the results to
-     * standard out.
-     * 
-     * @param query the input query string
-     * @return the number of rows returned
-     * @throws java.sql.SQLException when failed to execute the query
+     * Serves the menu operations over HTTP, run with --serve <port>.
      */
-    public int executeQueryAndPrintResult (String query) throws SQLException {
-        //creates a statement object
-        Statement stmt = this._connection.createStatement ();
+    static class NetworkService {
+        private final Ticketmaster esql;
+        private final int port;
+        private final Semaphore permits;
+        private final long permitTimeoutMillis = Long.getLong ("ticketmaster.pool.borrowTimeoutMillis", 30000L);
+        private final AtomicLong served = new AtomicLong ();
+        private final AtomicLong rejected = new AtomicLong ();
+        private HttpServer server;
+        private ExecutorService executor;
+        private final PrintStream console = System.out;
 
-        //issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+        NetworkService(Ticketmaster esql, int port) {
+            this.esql = esql;
+            this.port = port;
+            int maxConcurrency = Integer.getInteger ("ticketmaster.server.maxConcurrency",
+                Integer.getInteger ("ticketmaster.pool.maxSize", 8));
+            this.permits = new Semaphore (Math.max (1, maxConcurrency), true);
+        }
 
-        /*
-         *  obtains the metadata object for the returned result set.  The metadata
-         *  contains row and column info.
+        /**
+         * @return a virtual thread per task executor, or a bounded platform thread pool before Java 21
          */
-        ResultSetMetaData rsmd = rs.getMetaData ();
-        int numCol = rsmd.getColumnCount ();
-        int rowCount = 0;
-        
-        //iterates through the result set and output them to standard out.
-        boolean outputHeader = true;
-        while (rs.next()){
-            if(outputHeader){
-                for(int i = 1; i <= numCol; i++){
-                    System.out.print(rsmd.getColumnName(i) + "\t");
+        static ExecutorService newExecutor(int platformThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newFixedThreadPool (platformThreads);
+            }
+        }
+
+        void start() throws IOException {
+            executor = newExecutor (Integer.getInteger ("ticketmaster.server.threads", 4 * permits.availablePermits ()));
+            server = HttpServer.create (new InetSocketAddress (port), Integer.getInteger ("ticketmaster.server.backlog", 1024));
+            server.setExecutor (executor);
+            server.createContext ("/op/", new HttpHandler () {
+                public void handle(HttpExchange exchange) throws IOException {
+                    int op;
+                    try {
+                        op = Integer.parseInt (exchange.getRequestURI ().getPath ().substring ("/op/".length ()));
+                    } catch (NumberFormatException e) {
+                        op = -1;
+                    }
+                    if (!exchange.getRequestMethod ().equals ("POST") || op < 1 || op > 14) {
+                        respond (exchange, 400, "Expected POST /op/<1-14>\n");
+                        return;
+                    }
+                    serve (exchange, op, readLines (exchange.getRequestBody ()));
                 }
-                System.out.println();
-                outputHeader = false;
+            });
+            server.createContext ("/stats", new HttpHandler () {
+                public void handle(HttpExchange exchange) throws IOException {
+                    stats (exchange);
+                }
+            });
+            server.createContext ("/health", new HttpHandler () {
+                public void handle(HttpExchange exchange) throws IOException {
+                    respond (exchange, 200, "ok\n");
+                }
+            });
+            server.start ();
+            console.println ("Serving operations on port " + port + " (" +
+                (executor.getClass ().getName ().contains ("ThreadPerTask") ? "virtual threads" : "platform threads") +
+                ", " + permits.availablePermits () + " concurrent database operations)");
+        }
+
+        void stop() {
+            if (server == null) return;
+            server.stop (1);
+            executor.shutdown ();
+            try {
+                executor.awaitTermination (10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
             }
-            for (int i=1; i<=numCol; ++i)
-                System.out.print (rs.getString (i) + "\t");
-            System.out.println ();
-            ++rowCount;
-        }//end while
-        stmt.close ();
-        return rowCount;
-    }
-    
-    /**
-     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-     * method issues the query to the DBMS and returns the results as
-     * a list of records. Each record in turn is a list of attribute values
-     * 
-     * @param query the input query string
-     * @return the query result as a list of records
-     * @throws java.sql.SQLException when failed to execute the query
-     */
-    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-        //creates a statement object 
-        Statement stmt = this._connection.createStatement (); 
-        
-        //issues the query instruction 
-        ResultSet rs = stmt.executeQuery (query); 
-     
-        /*
-         * obtains the metadata object for the returned result set.  The metadata 
-         * contains row and column info. 
-        */ 
-        ResultSetMetaData rsmd = rs.getMetaData (); 
-        int numCol = rsmd.getColumnCount (); 
-        int rowCount = 0; 
-     
-        //iterates through the result set and saves the data returned by the query. 
-        boolean outputHeader = false;
-        List<List<String>> result  = new ArrayList<List<String>>(); 
-        while (rs.next()){
-            List<String> record = new ArrayList<String>(); 
-            for (int i=1; i<=numCol; ++i) 
-                record.add(rs.getString (i)); 
-            result.add(record); 
-        }//end while 
-        stmt.close (); 
-        return result; 
-    }//end executeQueryAndReturnResult
-    
-    /**
-     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-     * method issues the query to the DBMS and returns the number of results
-     * 
-     * @param query the input query string
-     * @return the number of rows returned
-     * @throws java.sql.SQLException when failed to execute the query
-     */
-    public int executeQuery (String query) throws SQLException {
-        //creates a statement object
-        Statement stmt = this._connection.createStatement ();
+            console.println ("Served " + served.get () + " requests, rejected " + rejected.get ());
+            server = null;
+        }
+
+        /**
+         * Runs operation op with answers as its input and writes what it printed to the response.
+         */
+        private void serve(HttpExchange exchange, final int op, List<String> answers) throws IOException {
+            try {
+                if (!permits.tryAcquire (permitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    rejected.incrementAndGet ();
+                    respond (exchange, 503, "Server busy, try again later\n");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+                respond (exchange, 503, "Server shutting down\n");
+                return;
+            }
+            //every request prints into its own buffer, no lock is shared between requests
+            ByteArrayOutputStream output = new ByteArrayOutputStream ();
+            final PrintStream out = new PrintStream (output, false, StandardCharsets.UTF_8);
+            boolean failed;
+            scriptedInput.set (answers.iterator ());
+            //reads after this client's own writes must see them
+            String client = exchange.getRequestHeaders ().getFirst ("X-Ticketmaster-Session");
+            esql.replicas ().client.set (client != null ? client : exchange.getRemoteAddress ().getAddress ().getHostAddress ());
+            try {
+                failed = esql.runOnSession (new SessionWork<Boolean>() {
+                    public Boolean run() throws SQLException {
+                        PooledConnection session = esql._session.get ();
+                        int errors = session.errors;
+                        try {
+                            dispatch (esql, op, out);
+                        } catch (Exception e) {
+                            session.errors++;
+                            out.println (e.getMessage ());
+                        }
+                        return session.errors != errors;
+                    }
+                });
+            } catch (SQLException e) {
+                failed = true;
+                out.println ("We did an oopsie on our end. Please try again later.");
+            } finally {
+                out.flush ();
+                scriptedInput.remove ();
+                esql.replicas ().client.remove ();
+                permits.release ();
+            }
+            served.incrementAndGet ();
+            respond (exchange, failed ? 500 : 200, output.toByteArray ());
+        }
 
-        //issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+        /**
+         * Prints the statistics, which are kept in memory, without taking a
+         * permit or a database connection.
+         */
+        private void stats(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream ();
+            PrintStream out = new PrintStream (output, false, StandardCharsets.UTF_8);
+            //answers "no" to the reset prompt
+            scriptedInput.set (Collections.<String>emptyIterator ());
+            try {
+                PrintStatistics (esql, out);
+            } finally {
+                scriptedInput.remove ();
+            }
+            out.flush ();
+            respond (exchange, 200, output.toByteArray ());
+        }
 
-        int rowCount = 0;
+        static List<String> readLines(InputStream body) throws IOException {
+            List<String> lines = new ArrayList<String>();
+            BufferedReader reader = new BufferedReader (new InputStreamReader (body, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine ()) != null) lines.add (line);
+            return lines;
+        }
 
-        //iterates through the result set and count nuber of results.
-        if(rs.next()){
-            rowCount++;
-        }//end while
-        stmt.close ();
-        return rowCount;
-    }
-    
-    /**
-     * Method to fetch the last value from sequence. This
-     * method issues the query to the DBMS and returns the current 
-     * value of sequence used for autogenerated keys
-     * 
-     * @param sequence name of the DB sequence
-     * @return current value of a sequence
-     * @throws java.sql.SQLException when failed to execute the query
-     */
-    
-    public int getCurrSeqVal(String sequence) throws SQLException {
-        Statement stmt = this._connection.createStatement ();
-        
-        ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-        if (rs.next()) return rs.getInt(1);
-        return -1;
-    }
+        static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            respond (exchange, status, body.getBytes (StandardCharsets.UTF_8));
+        }
 
-    /**
-     * Method to close the physical connection if it is open.
-     */
-    public void cleanup(){
-        try{
-            if (this._connection != null){
-                this._connection.close ();
-            }//end if
-        }catch (SQLException e){
-             // ignored.
-        }//end try
-    }//end cleanup
+        static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+            exchange.getResponseHeaders ().set ("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders (status, body.length == 0 ? -1 : body.length);
+            OutputStream out = exchange.getResponseBody ();
+            out.write (body);
+            out.close ();
+        }
+
+        /**
+         * Blocks until "quit" is read from the console or the JVM is asked to shut down.
+         */
+        void awaitShutdown() throws InterruptedException {
+            final CountDownLatch stopping = new CountDownLatch (1);
+            final CountDownLatch stopped = new CountDownLatch (1);
+            Thread hook = new Thread (new Runnable () {
+                public void run() {
+                    stopping.countDown ();
+                    try {
+                        stopped.await (15, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread ().interrupt ();
+                    }
+                }
+            }, "ticketmaster-shutdown");
+            Runtime.getRuntime ().addShutdownHook (hook);
+            Thread watcher = new Thread (new Runnable () {
+                public void run() {
+                    try {
+                        String line;
+                        while ((line = in.readLine ()) != null) {
+                            if (line.trim ().equalsIgnoreCase ("quit")) {
+                                stopping.countDown ();
+                                return;
+                            }
+                        }
+                    } catch (IOException e) {
+                        //no console, wait for the shutdown hook
+                    }
+                }
+            }, "ticketmaster-console");
+            watcher.setDaemon (true);
+            watcher.start ();
+            console.println ("Type quit to stop");
+            try {
+                stopping.await ();
+                stop ();
+            } finally {
+                stopped.countDown ();
+                try {
+                    Runtime.getRuntime ().removeShutdownHook (hook);
+                } catch (IllegalStateException e) {
+                    //already shutting down
+                }
+            }
+        }
+    }//end NetworkService
 
     /**
      * The main execution method
      * 
-     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+     * @param args the command line arguments this inclues the <dbname> <port> <user>,
+     *        optionally followed by --batch <file|-> [--group <n>] [--quiet],
+     *        --serve <port>, --check-indexes, --import <dir>,
+     *        --export <file|-> [--json] [--email <e>] [--status <s>] [--from <date>] [--to <date>]
+     *        --fast-start, --partition, --journal-replay <dir> or --bench-query <sql>;
+     *        --bench alone runs the stub benchmarks and --journal-dump <dir>
+     *        alone prints a mutation journal
      */
     public static void main (String[] args) {
-        if (args.length != 3) {
+        STARTUP.mainEntered ();
+        if (args.length == 1 && args[0].equals ("--bench")) {
+            //the stub benchmarks need no database
+            try {
+                new MicroBenchmark (System.out).runStubSuite ();
+            } catch (Exception e) {
+                e.printStackTrace ();
+            }
+            return;
+        }
+        if (args.length == 2 && args[0].equals ("--journal-dump")) {
+            //reading the journal needs no database
+            try {
+                long count = Journal.dump (new File (args[1]), System.out);
+                System.err.println (count + " mutation(s)");
+            } catch (Exception e) {
+                e.printStackTrace ();
+            }
+            return;
+        }
+        if (args.length < 3) {
             System.err.println (
                 "Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-                    " <dbname> <port> <user>");
+                    " <dbname> <port> <user> [--batch <file|-> [--group <n>] [--quiet]] [--serve <port>] [--check-indexes] [--import <dir>] [--fast-start]\n" +
+                    "       [--export <file|-> [--json] [--email <e>] [--status <s>] [--from <date>] [--to <date>]] [--bench-query <sql>]\n" +
+                    "       [--journal-replay <dir>] [--partition]\n" +
+                    "       java [-classpath <classpath>] " + Ticketmaster.class.getName () + " --bench\n" +
+                    "       java [-classpath <classpath>] " + Ticketmaster.class.getName () + " --journal-dump <dir>");
             return;
         }//end if
         
         Ticketmaster esql = null;
+        String batch = null;
+        String benchQuery = null;
+        int serve = -1;
+        boolean checkIndexes = false;
+        boolean partition = false;
+        boolean fastStart = false;
+        String importDir = null;
+        String export = null;
+        String replay = null;
+        boolean json = false;
+        Map<String, String> exportFilters = new HashMap<String, String>();
+        int group = 1;
+        boolean quiet = false;
+        for (int i = 3; i < args.length; ++i) {
+            if (args[i].equals ("--batch") && i + 1 < args.length) batch = args[++i];
+            else if (args[i].equals ("--bench-query") && i + 1 < args.length) benchQuery = args[++i];
+            else if (args[i].equals ("--serve") && i + 1 < args.length) serve = Integer.parseInt (args[++i]);
+            else if (args[i].equals ("--group") && i + 1 < args.length) group = Integer.parseInt (args[++i]);
+            else if (args[i].equals ("--quiet")) quiet = true;
+            else if (args[i].equals ("--check-indexes")) checkIndexes = true;
+            else if (args[i].equals ("--partition")) partition = true;
+            else if (args[i].equals ("--fast-start")) fastStart = true;
+            else if (args[i].equals ("--import") && i + 1 < args.length) importDir = args[++i];
+            else if (args[i].equals ("--export") && i + 1 < args.length) export = args[++i];
+            else if (args[i].equals ("--json")) json = true;
+            else if (args[i].equals ("--journal-replay") && i + 1 < args.length) replay = args[++i];
+            else if (args[i].equals ("--email") && i + 1 < args.length) exportFilters.put ("email", args[++i]);
+            else if (args[i].equals ("--status") && i + 1 < args.length) exportFilters.put ("status", args[++i]);
+            else if (args[i].equals ("--from") && i + 1 < args.length) exportFilters.put ("from", args[++i]);
+            else if (args[i].equals ("--to") && i + 1 < args.length) exportFilters.put ("to", args[++i]);
+            else {
+                System.err.println ("Unknown option: " + args[i]);
+                return;
+            }
+        }
         
         try{
             System.out.println("(1)");
             
-            try {
+            //fast start loads the driver on the connect thread
+            if (!fastStart) try {
                 Class.forName("org.postgresql.Driver");
             }catch(Exception e){
 
@@ -240,8 +5623,78 @@ public class Ticketmaster{
             String dbport = args[1];
             String user = args[2];
             
-            esql = new Ticketmaster (dbname, dbport, user, "");
+            esql = new Ticketmaster (dbname, dbport, user, "", fastStart);
+
+            if (benchQuery != null) {
+                new MicroBenchmark (System.out).runQuery (esql, benchQuery);
+                return;
+            }
+            if (export != null) {
+                ItineraryExporter exporter = new ItineraryExporter (esql).asJsonLines (json)
+                    .forEmail (exportFilters.get ("email")).withStatus (exportFilters.get ("status"))
+                    .from (exportFilters.get ("from")).to (exportFilters.get ("to"));
+                OutputStream target = export.equals ("-") ? System.out : new FileOutputStream (export);
+                Writer out = new BufferedWriter (new OutputStreamWriter (target, StandardCharsets.UTF_8), 1 << 16);
+                long start = System.nanoTime ();
+                try {
+                    long rows = exporter.run (out);
+                    System.err.printf ("Exported %d rows in %.1f s%n", rows, (System.nanoTime () - start) / 1e9);
+                } finally {
+                    if (target != System.out) out.close ();
+                }
+                return;
+            }
+            if (replay != null) {
+                long start = System.nanoTime ();
+                long count = Journal.replay (new File (replay), esql, System.out);
+                System.out.printf ("Replayed %d mutation(s) in %.1f s%n", count, (System.nanoTime () - start) / 1e9);
+                return;
+            }
+            if (importDir != null) {
+                new CatalogLoader (esql, System.out).run (new File (importDir));
+                return;
+            }
+            if (partition) {
+                PartitionManager partitions = esql.partitions ();
+                if (!partitions.partitioned ()) {
+                    System.out.print ("Convert Shows and ShowSeats to monthly partitions? Both tables are locked while the rows are copied (y/n): ");
+                    if (!ReadUserInput ().trim ().equalsIgnoreCase ("y")) return;
+                    partitions.migrate (System.out);
+                }
+                partitions.maintain (System.out);
+                return;
+            }
+            if (checkIndexes) {
+                IndexAdvisor advisor = new IndexAdvisor (esql, System.out);
+                List<IndexAdvisor.RequiredIndex> missing = advisor.missing ();
+                boolean create = false;
+                if (!missing.isEmpty ()) {
+                    System.out.print ("Create " + missing.size () + " missing index(es) concurrently? (y/n): ");
+                    create = ReadUserInput ().trim ().equalsIgnoreCase ("y");
+                }
+                advisor.run (create);
+                return;
+            }
+            if (serve >= 0) {
+                esql.holds ().start ();
+                esql.partitions ().start ();
+                NetworkService service = new NetworkService (esql, serve);
+                service.start ();
+                service.awaitShutdown ();
+                return;
+            }
+            if (batch != null) {
+                BufferedReader input = batch.equals ("-") ? in : new BufferedReader (new FileReader (new File (batch)));
+                try {
+                    new BatchRunner (esql, group, quiet).run (input);
+                } finally {
+                    if (input != in) input.close ();
+                }
+                return;
+            }
             
+            esql.holds ().start ();
+            esql.partitions ().start ();
             boolean keepon = true;
             while(keepon){
                 System.out.println("MAIN MENU");
@@ -260,34 +5713,21 @@ public class Ticketmaster{
                 System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
                 System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
                 System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-                System.out.println("15. EXIT");
+                System.out.println("15. Statistics");
+                System.out.println("16. EXIT");
                 
                 /*
                  * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
                  */
-                switch (readChoice()){
-                    case 1: AddUser(esql); break;
-                    case 2: AddBooking(esql); break;
-                    case 3: AddMovieShowingToTheater(esql); break;
-                    case 4: CancelPendingBookings(esql); break;
-                    case 5: ChangeSeatsForBooking(esql); break;
-                    case 6: RemovePayment(esql); break;
-                    case 7: ClearCancelledBookings(esql); break;
-                    case 8: RemoveShowsOnDate(esql); break;
-                    case 9: ListTheatersPlayingShow(esql); break;
-                    case 10: ListShowsStartingOnTimeAndDate(esql); break;
-                    case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-                    case 12: ListUsersWithPendingBooking(esql); break;
-                    case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-                    case 14: ListBookingInfoForUser(esql); break;
-                    case 15: keepon = false; break;
-                }
+                STARTUP.menuShown();
+                keepon = dispatch(esql, readChoice(), System.out);
             }
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }finally{
             try{
                 if(esql != null) {
+                    if (fastStart) System.out.println("Startup: " + STARTUP);
                     System.out.print("Disconnecting from database...");
                     esql.cleanup ();
                     System.out.println("Done\n\nBye !");
@@ -298,6 +5738,47 @@ public class Ticketmaster{
         }
     }
 
+    /**
+     * Runs the menu operation with the given number, printing to out.
+     *
+     * @return false when the choice was EXIT
+     */
+    static boolean dispatch(Ticketmaster esql, int choice, PrintStream out) throws Exception {
+        if (choice == 15) {
+            PrintStatistics(esql, out);
+            return true;
+        }
+        if (choice < 1 || choice > 14) return choice != 16;
+
+        //time the operation and count its round trips
+        long start = System.nanoTime();
+        long[] outer = esql.metrics().beginOperation();
+        boolean threw = true;
+        try {
+            switch (choice){
+                case 1: AddUser(esql, out); break;
+                case 2: AddBooking(esql, out); break;
+                case 3: AddMovieShowingToTheater(esql, out); break;
+                case 4: CancelPendingBookings(esql, out); break;
+                case 5: ChangeSeatsForBooking(esql, out); break;
+                case 6: RemovePayment(esql, out); break;
+                case 7: ClearCancelledBookings(esql, out); break;
+                case 8: RemoveShowsOnDate(esql, out); break;
+                case 9: ListTheatersPlayingShow(esql, out); break;
+                case 10: ListShowsStartingOnTimeAndDate(esql, out); break;
+                case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql, out); break;
+                case 12: ListUsersWithPendingBooking(esql, out); break;
+                case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql, out); break;
+                case 14: ListBookingInfoForUser(esql, out); break;
+            }
+            threw = false;
+        } finally {
+            esql.metrics().endOperation(OPERATIONS[choice], start, threw, outer);
+            STARTUP.operationFinished(OPERATIONS[choice], start);
+        }
+        return true;
+    }
+
     public static int readChoice() {
         int input;
         // returns only if a correct value is given.
@@ -326,18 +5807,44 @@ public class Ticketmaster{
         return saltStr;
     }
 
+    /**
+     * Prints query page by page, asking before every further page on the console.
+     *
+     * @return the number of rows printed
+     */
+    static int PrintPages(Ticketmaster esql, PrintStream out, String[] tables, String query, String[] keys, Object... params) throws SQLException {
+        int total = 0;
+        String token = null;
+        do {
+            Page page = esql.executeQueryPage(tables, query, keys, PAGE_SIZE, token, params);
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), 1 << 16));
+            page.print(writer);
+            writer.flush();
+            total += page.rowCount();
+            token = page.nextToken();
+            if(token != null && scriptedInput.get() == null){
+                out.print("-- " + total + " rows so far, press Enter for more or q to stop: ");
+                if(ReadUserInput().trim().equalsIgnoreCase("q")) break;
+            }
+        } while(token != null);
+        return total;
+    }
+
     public static String ReadUserInput(){
-        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        //batch mode answers the prompt from the current command
+        Iterator<String> scripted = scriptedInput.get();
+        if (scripted != null) return scripted.hasNext() ? scripted.next() : "";
+
         String userInput = "";
         try { // read the string, parse it and break.
-            userInput = reader.readLine();
+            userInput = in.readLine();
         }catch (Exception e) {
             System.out.println("Your input is invalid!");
         }//end try
-        return userInput;
+        return userInput == null ? "" : userInput;
     }
 
-    public static void AddUser(Ticketmaster esql){//1
+    public static void AddUser(Ticketmaster esql, PrintStream out){//1
         
         String fname = "";
         String lname = "";
@@ -347,167 +5854,173 @@ public class Ticketmaster{
         String query = "";
         int number_rows_returned = 0;
 
-        System.out.print("Please enter first name: ");
+        out.print("Please enter first name: ");
         fname = ReadUserInput().trim();
-        System.out.println("First name is: " + fname);
+        out.println("First name is: " + fname);
 
-        System.out.print("Please enter last name: ");
+        out.print("Please enter last name: ");
         lname = ReadUserInput().trim();
-        System.out.println("Last name is: " + lname);
+        out.println("Last name is: " + lname);
 
-        System.out.print("Please enter user email: ");
+        out.print("Please enter user email: ");
         email = ReadUserInput().trim();
-        System.out.println("email is: " + email);
+        out.println("email is: " + email);
 
-        System.out.print("Please enter phone number: ");
+        out.print("Please enter phone number: ");
         phone = ReadUserInput().trim();
-        System.out.println("phone number is: " + phone);
+        out.println("phone number is: " + phone);
 
-        //System.out.print("Please enter user password: ");
+        //out.print("Please enter user password: ");
         //pwd = ReadUserInput().trim();
         pwd = getSaltString();
-        System.out.println("Password is: " + pwd);
+        out.println("Password is: " + pwd);
 
-        query = "SELECT * FROM Users WHERE email = \'" + email + "\'";
+        query = "SELECT * FROM Users WHERE email = ?";
 
-        try { //check to see if input email matches any on record.
-            number_rows_returned = esql.executeQueryAndPrintResult(query);
-        }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
-            return;
+        //the directory answers most checks without a query
+        //a "yes" may be stale, the insert's unique violation decides then
+        if(esql.userDirectory().lookup(email) == UserDirectory.Answer.MAYBE){
+            try { //check to see if input email matches any on record.
+                number_rows_returned = esql.executeQueryAndPrintResult(out, query, email);
+            }catch (SQLException e) {
+                out.println("We did an oopsie on our end. Please try again later.");
+                return;
+            }
+            if(number_rows_returned > 0) esql.userDirectory().registered(email);
         }
 
         if(number_rows_returned > 0){
-            System.out.println("A user with email " + email + " has already been registered. Please try again");
+            out.println("A user with email " + email + " has already been registered. Please try again");
             return;
         }else{
             //no user with same email found, proceed to insert.
-            query = "INSERT INTO Users (email, lname, fname, phone, pwd) VALUES (\'" + email + "\', \'" + lname + "\', \'" + fname + "\', \'" + phone + "\', \'" + pwd + "\')";
+            query = "INSERT INTO Users (email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)";
             try {
-                esql.executeUpdate(query);
-                System.out.println(fname + " " + lname + " has been successfully added. Have a nice day :)");
+                final String added = email;
+                esql.executeUpdate(query, email, lname, fname, phone, pwd);
+                //a batch group can still roll the insert back
+                esql.afterCommit(new Runnable() {
+                    public void run() {
+                        esql.userDirectory().registered(added);
+                    }
+                });
+                out.println(fname + " " + lname + " has been successfully added. Have a nice day :)");
             }catch (SQLException e) {
-                System.out.println("We did an oopsie on our end. Please try again later.");
+                //a filter built before another client added the user
+                if("23505".equals(e.getSQLState())){
+                    esql.userDirectory().registered(email);
+                    out.println("A user with email " + email + " has already been registered. Please try again");
+                }else{
+                    out.println("We did an oopsie on our end. Please try again later.");
+                }
             }
         }
     }
     
-    public static void AddBooking(Ticketmaster esql){//2
+    public static void AddBooking(final Ticketmaster esql, final PrintStream out){//2
         String bid = "";
         String status = "";
         String bdatetime = "";
         String seats = "";
         String sid = "";
         String email = "";
-        String[] ssid = new String[10];
-        String[] queries = new String[3];
-        String insert_query  = "";
-        int number_rows_returned = 0;
-        int errors = 0;
+        final List<String> ssid = new ArrayList<String>();
 
-        System.out.print("Please enter the booking ID: ");
+        out.print("Please enter the booking ID: ");
         bid = ReadUserInput().trim();
-        System.out.println("bid is: " + bid);
+        out.println("bid is: " + bid);
 
-        System.out.print("Please enter status: (Paid, Cancelled, Pending): ");
+        out.print("Please enter status: (Paid, Cancelled, Pending): ");
         status = ReadUserInput().trim();
-        System.out.println("Status is: " + status);
+        out.println("Status is: " + status);
 
-        System.out.print("Please enter date and time in mm/dd/yy hh:mm:ss AM/PM format: ");
+        out.print("Please enter date and time in mm/dd/yy hh:mm:ss AM/PM format: ");
         bdatetime = ReadUserInput().trim();
 
-        System.out.print("Please enter number of seats booked: ");
+        out.print("Please enter number of seats booked: ");
         seats = ReadUserInput().trim();
-        System.out.println("# of seats: " + seats);
+        out.println("# of seats: " + seats);
 
-        System.out.print("Please enter show ID: ");
+        out.print("Please enter show ID: ");
         sid = ReadUserInput().trim();
-        System.out.println("Show ID is : " + sid);
+        out.println("Show ID is : " + sid);
 
-        System.out.print("Please enter booker email: ");
+        out.print("Please enter booker email: ");
         email = ReadUserInput().trim();
-        System.out.println("Email is: " + email);
-
-        
-        queries[0] = "SELECT * FROM Bookings WHERE bid = " + bid;
-        queries[1] = "SELECT * FROM Shows WHERE sid = " + sid;
-        queries[2] = "SELECT * FROM Users WHERE email = \'" + email + "\'";
-
-        for(int i = 0; i < 3; ++i){
-            try { //check if bid, sid, or email exists
-                number_rows_returned = esql.executeQueryAndPrintResult(queries[i]);
-            }catch (SQLException e) {
-                System.out.println("We did an oopsie on our end. Please try again later.");
-                return;
-            }
-
-            switch(i){
-                case 0:{
-                    if(number_rows_returned > 0){
-                        System.out.println("\nError: Booking id " + bid + " already exists!\n");
-                        errors++;
-                    }
-                    break;
-                }
-                case 1:	{
-                    if(number_rows_returned == 0){
-                        System.out.println("\nError: Show with sid " + sid + " does not exist!\n");
-                        errors++;
-                    }
-                    break;
-                }
-                case 2:{
-                    if(number_rows_returned == 0){
-                        System.out.println("\nError: User with email " + email + " does not exist!\n");
-                        errors++;
-                    }
-                    break;
-                }
-            }
-        }
-
-        //checks if any errors have occured.
-        if(errors > 0){
-            System.out.println("Please fix all errors and try again");
-            return;
-        }
+        out.println("Email is: " + email);
 
-        //create empty booking
-        insert_query = "INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email) VALUES (\'" + bid + "\', \'" + status + "\', \'" + bdatetime + "\', \'" + seats + "\', \'" + sid + "\', \'" + email +"\')";
+        //reject an unusable booking before asking for seats
         try {
-            esql.executeUpdate(insert_query);
-            System.out.println("Booking " + bid + " has been successfully created.");
+            esql.checkBooking(bid, sid, email);
+        }catch (BookingRejectedException e) {
+            printProblems(out, e, bid, sid, email);
+            return;
         }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
 
-        //display seats available for show
-        String display_seats = "SELECT ssid FROM ShowSeats WHERE bid IS NULL AND sid = " + sid;
+        //display seats available for show, answered by the seat index
         try {
-            System.out.println("Here are the available seats for sid " + sid);
-            esql.executeQueryAndPrintResult(display_seats);
+            out.println("Here are the available seats for sid " + sid);
+            StringBuilder display_seats = new StringBuilder("ssid\t\n");
+            for(long seat : esql.seatIndex().freeSeats(sid)){
+                display_seats.append(seat).append("\t\n");
+            }
+            out.print(display_seats);
         }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
 
-        //Prompt user for seat to be booked.
+        //Prompt user for seats to be booked.
         for(int i = 0; i < Integer.parseInt(seats); ++i){
-            System.out.print("Please enter seat to be booked: ");
-            ssid[i] = ReadUserInput().trim();
-            System.out.println("Adding seat " + ssid[i] + " to booking " + bid);
-            String update_showseat_booking = "UPDATE ShowSeats SET bid = " + bid + " WHERE ssid = " + ssid[i];
-            try {
-                esql.executeUpdate(update_showseat_booking);
-                System.out.println("SUCCESS!");
-            }catch (SQLException e) {
-                System.out.println("We did an oopsie on our end. Please try again later. " + e);
+            out.print("Please enter seat to be booked: ");
+            ssid.add(ReadUserInput().trim());
+            out.println("Adding seat " + ssid.get(i) + " to booking " + bid);
+        }
+
+        //validate and create the booking, then reserve its seats, in one transaction
+        final String[] booking = { bid, status, bdatetime, seats, sid, email };
+        try {
+            esql.runInTransaction(new SessionWork<Void>() {
+                public Void run() throws SQLException {
+                    esql.createBooking(booking[0], booking[1], booking[2], booking[3], booking[4], booking[5]);
+                    esql.reserveSeats(booking[0], booking[4], ssid);
+                    return null;
+                }
+            });
+            out.println("Booking " + bid + " has been successfully created with seats " + ssid + ".");
+        }catch (BookingRejectedException e) {
+            //the booking id was taken, or the show or user removed, after the check
+            printProblems(out, e, bid, sid, email);
+        }catch (SeatsTakenException e) {
+            for(int i = 0; i < ssid.size(); ++i){
+                if(!e.getReserved()[i]){
+                    out.println("Error: Seat " + ssid.get(i) + " is not available for show " + sid + ".");
+                }
             }
+            out.println("Booking " + bid + " was not created. Please pick other seats and try again.");
+        }catch (SQLException e) {
+            out.println("We did an oopsie on our end. Please try again later.");
         }
     }
     
-    public static void AddMovieShowingToTheater(Ticketmaster esql){//3
+    //prints every check a booking failed
+    static void printProblems(PrintStream out, BookingRejectedException e, String bid, String sid, String email){
+        if(e.getProblems().contains(BookingRejectedException.Problem.BOOKING_EXISTS)){
+            out.println("\nError: Booking id " + bid + " already exists!\n");
+        }
+        if(e.getProblems().contains(BookingRejectedException.Problem.NO_SUCH_SHOW)){
+            out.println("\nError: Show with sid " + sid + " does not exist!\n");
+        }
+        if(e.getProblems().contains(BookingRejectedException.Problem.NO_SUCH_USER)){
+            out.println("\nError: User with email " + email + " does not exist!\n");
+        }
+        out.println("Please fix all errors and try again");
+    }
+
+    public static void AddMovieShowingToTheater(final Ticketmaster esql, final PrintStream out){//3
         //movie
         String mvid = "";
         String title = "";
@@ -536,379 +6049,416 @@ public class Ticketmaster{
         int number_rows_returned = 0;
 
         
-        System.out.print("Please enter the theater ID: ");
+        out.print("Please enter the theater ID: ");
         tid = ReadUserInput().trim();
-        System.out.println("tid is: " + tid);
+        out.println("tid is: " + tid);
 
-        query = "SELECT * FROM Theaters WHERE tid = " + tid;
+        query = "SELECT * FROM Theaters WHERE tid = ?";
 
         try { //check if theater exists
-            number_rows_returned = esql.executeQueryAndPrintResult(query);
+            number_rows_returned = esql.executeQueryAndPrintResult(out, query, tid);
         }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
 
         if (number_rows_returned > 0){
-            System.out.println("Theater id " + tid + " exists.");
+            out.println("Theater id " + tid + " exists.");
         }
         else { //(number_rows_returned == 0)
-            System.out.println("Error: Theater id " + tid + " does not exist.");
+            out.println("Error: Theater id " + tid + " does not exist.");
             return;
         }
 
 
         //inputs for movie
-        System.out.print("Please enter the movie ID: ");
+        out.print("Please enter the movie ID: ");
         mvid = ReadUserInput().trim();
-        System.out.println("mvid is: " + mvid);
+        out.println("mvid is: " + mvid);
 
-        System.out.print("Please enter the movie title: ");
+        out.print("Please enter the movie title: ");
         title = ReadUserInput().trim();
-        System.out.println("movie title is: " + title);
+        out.println("movie title is: " + title);
 
-        System.out.print("Please enter the release date in MM/DD/YYYY format: ");
+        out.print("Please enter the release date in MM/DD/YYYY format: ");
         rdate = ReadUserInput().trim();
-        System.out.println("rdate is: " + rdate);
+        out.println("rdate is: " + rdate);
 
-        System.out.print("Please enter the country: ");
+        out.print("Please enter the country: ");
         country = ReadUserInput().trim();
-        System.out.println("country is: " + country);
+        out.println("country is: " + country);
 
-        System.out.print("Please enter the description: ");
+        out.print("Please enter the description: ");
         description = ReadUserInput().trim();
-        System.out.println("description is: " + description);
+        out.println("description is: " + description);
 
-        System.out.print("Please enter the duration: ");
+        out.print("Please enter the duration: ");
         duration = ReadUserInput().trim();
-        System.out.println("duration is: " + duration);
+        out.println("duration is: " + duration);
 
-        System.out.print("Please enter the language code (2 letter abbreviations, i.e. English = en): ");
+        out.print("Please enter the language code (2 letter abbreviations, i.e. English = en): ");
         lang = ReadUserInput().trim();
-        System.out.println("language is: " + lang);
+        out.println("language is: " + lang);
 
-        System.out.print("Please enter the genre: ");
+        out.print("Please enter the genre: ");
         genre = ReadUserInput().trim();
-        System.out.println("genre is: " + genre);
-
-
-        //insert new movie into movies table
-        insert_query = "INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) VALUES (\'" + mvid + "\', \'" + title + "\', \'" + rdate + "\', \'" + country + "\', \'" + description + "\', \'" + duration +"\', \'" + lang +"\', \'" + genre +"\')";
-        try {
-            esql.executeUpdate(insert_query);
-            System.out.println("Movie " + mvid + " has been successfully added. Have a nice day :)");
-        }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
-        }
+        out.println("genre is: " + genre);
 
 
         //show inputs
-        System.out.print("Please enter the show ID: ");
+        out.print("Please enter the show ID: ");
         sid = ReadUserInput().trim();
-        System.out.println("sid is: " + sid);
+        out.println("sid is: " + sid);
 
-        System.out.print("Please enter the show date: ");
+        out.print("Please enter the show date: ");
         sdate = ReadUserInput().trim();
-        System.out.println("show date is: " + sdate);
+        out.println("show date is: " + sdate);
 
-        System.out.print("Please enter the show start time (in HH:MM format): ");
+        out.print("Please enter the show start time (in HH:MM format): ");
         sttime = ReadUserInput().trim();
-        System.out.println("start time is: " + sttime);
+        out.println("start time is: " + sttime);
 
-        System.out.print("Please enter the show end time (in HH:MM format): ");
+        out.print("Please enter the show end time (in HH:MM format): ");
         edtime = ReadUserInput().trim();
-        System.out.println("end time is: " + edtime);
+        out.println("end time is: " + edtime);
 
-        //insert into shows
-        insert_query2 = "INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) VALUES (\'" + sid + "\', \'" + mvid + "\', \'" + sdate + "\', \'" + sttime + "\', \'" + edtime + "\')";
-        try {
-            esql.executeUpdate(insert_query2);
-            System.out.println("Show " + sid + " has been successfully added. Have a nice day :)");
-        }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
+        //insert the movie, the show and the play together, or none of them; a movie already in the catalog is kept as is
+        insert_query = "INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (mvid) DO NOTHING";
+        insert_query2 = "INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) VALUES (?, ?, ?, ?, ?)";
+        insert_query3 = "INSERT INTO Plays (sid, tid) VALUES (?, ?)";
+        final String[] queries = { insert_query, insert_query2, insert_query3 };
+        final Object[][] params = {
+            { mvid, title, rdate, country, description, duration, lang, genre },
+            { sid, mvid, sdate, sttime, edtime },
+            { sid, tid } };
+        final int[] added = new int[queries.length];
+        for(int attempt = 0; ; ++attempt){
+            try {
+                //a show further out than the partitions made ahead needs its month first
+                esql.partitions().cover(sdate, sdate);
+                esql.runInTransaction(new SessionWork<Void>() {
+                    public Void run() throws SQLException {
+                        for(int i = 0; i < queries.length; ++i){
+                            added[i] = esql.executeUpdate(queries[i], params[i]);
+                        }
+                        return null;
+                    }
+                });
+                break;
+            }catch (SQLException e) {
+                try {
+                    //no partition for the date: another process partitioned Shows since we last looked
+                    if(attempt == 0 && "23514".equals(e.getSQLState()) && esql.partitions().recheck()) continue;
+                }catch (SQLException again) {
+                    //reported below
+                }
+                out.println("We did an oopsie on our end. Please try again later.");
+                return;
+            }
         }
-
-        //insert into plays
-        insert_query3 = "INSERT INTO Plays (sid, tid) VALUES (\'" + sid + "\', \'" + tid + "\')";
-        try {
-            esql.executeUpdate(insert_query3);
-            System.out.println("Play with Show " + sid + " and Theater " + tid + " has been successfully added.Have a nice day :)");
-        } catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
+        if(added[0] == 0){
+            out.println("Movie " + mvid + " already exists.");
+        }
+        else{
+            out.println("Movie " + mvid + " has been successfully added. Have a nice day :)");
         }
+        out.println("Show " + sid + " has been successfully added. Have a nice day :)");
+        out.println("Play with Show " + sid + " and Theater " + tid + " has been successfully added.Have a nice day :)");
     }
     
-    public static void CancelPendingBookings(Ticketmaster esql){//4
-        int bid = -1;
-        List<List<String>> result = new ArrayList<List<String>>(); 
+    public static void CancelPendingBookings(Ticketmaster esql, PrintStream out){//4
+        String sid = "";
+        String cid = "";
+        String minutes = "";
+        String get_status_query = "";
+        BulkCanceller canceller = new BulkCanceller(esql);
+
+        //optional filters, blank means all pending bookings
+        out.print("Only cancel bookings for show ID (leave blank for all shows): ");
+        sid = ReadUserInput().trim();
+        if(!sid.isEmpty()) canceller.forShow(sid);
+
+        out.print("Only cancel bookings at cinema ID (leave blank for all cinemas): ");
+        cid = ReadUserInput().trim();
+        if(!cid.isEmpty()) canceller.atCinema(cid);
 
-        String get_status_query = "Select bid FROM Bookings WHERE status = \'Pending\'";
-        //get list of bookings that have pending status
+        out.print("Only cancel bookings older than this many minutes (leave blank for any age): ");
+        minutes = ReadUserInput().trim();
         try{
-            System.out.println("\nThese are the bookings with a pending status\n");
-            result = esql.executeQueryAndReturnResult(get_status_query);
-            System.out.println(Arrays.deepToString(result.toArray()));
-        }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            if(!minutes.isEmpty()) canceller.olderThanMinutes(Integer.parseInt(minutes));
+        }catch (NumberFormatException e){
+            out.println("Your input is invalid!");
             return;
         }
 
-        //then loop through the result and update those entries with the same bid
-        //also turn all showseats related to that bid to null to free them
-        for(int i = 0; i < result.size(); ++i){
-            //parse bid string to int
-            bid = Integer.parseInt(result.get(i).get(0));
-            String update_query = "UPDATE Bookings SET status = \'Cancelled\' WHERE bid = " + bid;
-            String remove_showseats_bid = "UPDATE ShowSeats SET bid = NULL WHERE bid = " + bid;
-
-            try{
-                esql.executeUpdate(update_query);
-                esql.executeUpdate(remove_showseats_bid);
-            }catch (SQLException e){
-                System.out.println("Error updating Booking entry with bid " + bid + ". Please try again later.");
-                return;
-            }
+        //cancel the pending bookings and free their showseats, one chunk per transaction
+        long start = System.nanoTime();
+        long cancelled = 0;
+        try{
+            cancelled = canceller.run(out);
+        }catch (SQLException e){
+            out.println("Error cancelling pending bookings, bookings cancelled so far stay cancelled. Please try again later.");
+            return;
         }
-        System.out.println("Successfully cancelled all pending bookings.");
+        double seconds = (System.nanoTime() - start) / 1e9;
+        out.printf("Successfully cancelled %d pending bookings in %.2f s.%n", cancelled, seconds);
 
         //  PRINT OUT STATUS OF ALL BOOKINGS
         get_status_query = "Select * FROM Bookings WHERE status = \'Cancelled\'";
         try{
-            esql.executeQueryAndPrintResult(get_status_query);
+            PrintPages(esql, out, null, get_status_query, new String[] { "bid" });
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
         
     }
     
-    public static void ChangeSeatsForBooking(Ticketmaster esql) throws Exception{//5
+    public static void ChangeSeatsForBooking(Ticketmaster esql, PrintStream out) throws Exception{//5
         String bid = "";
         String ssid = "";
         String new_ssid = "";
-        List<List<String>> result = new ArrayList<List<String>>();
+        String sid = null;
+        ColumnarResult result = null;
 
         //get booking to be edited.
-        System.out.print("Please input booking ID to be changed: ");
+        out.print("Please input booking ID to be changed: ");
         bid = ReadUserInput().trim();
-        System.out.println("bid is: " + bid + "\n");
+        out.println("bid is: " + bid + "\n");
 
         //output the seats that are associated with the booking ID
-        String seats_query = "SELECT ssid FROM ShowSeats WHERE bid = " + bid;
-        System.out.println("Seats available to be changed are: ");
+        String seats_query = "SELECT ssid, sid FROM ShowSeats WHERE bid = ? ORDER BY ssid";
+        out.println("Seats available to be changed are: ");
         try{
-            esql.executeQueryAndPrintResult(seats_query);
+            result = esql.executeQueryAndReturnColumns(seats_query, bid);
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
+        out.println("ssid\t");
+        for(int i = 0; i < result.rowCount(); ++i){
+            out.println(result.getString(i, 0) + "\t");
+        }
 
         //gets seat to be changed from
-        System.out.print("\nWhich seat would you like to be changed?: ");
+        out.print("\nWhich seat would you like to be changed?: ");
         ssid = ReadUserInput().trim();
-        System.out.println("The seat to be changed is: " + ssid + "\n");
+        out.println("The seat to be changed is: " + ssid + "\n");
+        for(int i = 0; i < result.rowCount(); ++i){
+            if(result.getString(i, 0).equals(ssid)) sid = result.getString(i, 1);
+        }
+        if(sid == null){
+            out.println("Seat " + ssid + " is not part of booking " + bid + ".");
+            return;
+        }
 
-        //show available seats that are the same price
-        String show_available_query = "SELECT ssid FROM ShowSeats WHERE bid IS NULL" +
-                            " INTERSECT SELECT s1.ssid FROM ShowSeats s1 WHERE s1.price = (SELECT s2.price FROM ShowSeats s2 WHERE s2.ssid = " + ssid + ")" +
-                            " INTERSECT SELECT s1.ssid FROM ShowSeats s1, Plays p1 WHERE s1.sid = p1.sid AND p1.tid = (SELECT p2.tid FROM ShowSeats s2, Plays p2 WHERE s2.sid = p2.sid AND s2.ssid = " + ssid + ")";
+        //show available seats that are the same price, from the seat index buckets
+        long[] candidates = null;
         try{
-            result = esql.executeQueryAndReturnResult(show_available_query);
+            candidates = esql.seatIndex().swapCandidates(sid, Long.parseLong(ssid));
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
 
         //print seats or error if no seats are available
-        if(result.size() == 0){
-            System.out.println("Sorry, there are no seats available to be changed to.");
+        if(candidates.length == 0){
+            out.println("Sorry, there are no seats available to be changed to.");
             return;
         }else{
-            System.out.print("Here are the seats that are still available at the same price: ");
-            for(int i = 0; i < result.size(); ++i){
-                System.out.print(result.get(i).get(0) + " ");
+            out.print("Here are the seats that are still available at the same price: ");
+            for(int i = 0; i < candidates.length; ++i){
+                out.print(candidates[i] + " ");
             }
         }
 
         //get seat to be changed to
-        System.out.print("\nWhich seat would you like to change Seat " + ssid + " to?: ");
+        out.print("\nWhich seat would you like to change Seat " + ssid + " to?: ");
         new_ssid = ReadUserInput().trim();
-        System.out.println("New seat is: " + new_ssid + "\n");
+        out.println("New seat is: " + new_ssid + "\n");
 
-        //update chosen seats and set old seat booking to null
-        String remove_old_booking = "UPDATE ShowSeats SET bid = NULL WHERE ssid = " + ssid;
-        String add_new_booking = "UPDATE ShowSeats SET bid = " + bid + " WHERE ssid = " + new_ssid;
+        //take the new seat and release the old one in one transaction
         try{
-            esql.executeUpdate(remove_old_booking);
-            esql.executeUpdate(add_new_booking);
-            System.out.println("Booking has been successfully updated! :)");
+            esql.swapSeat(bid, sid, ssid, new_ssid);
+            out.println("Booking has been successfully updated! :)");
+        }catch (SeatsTakenException e){
+            out.println("Sorry, seat " + new_ssid + " is no longer available at the same price. Your booking was not changed.");
         }catch (SQLException e){
-            System.out.println("Error updating Booking entry with bid " + bid + ". Please try again later.");
+            out.println("Error updating Booking entry with bid " + bid + ". Please try again later.");
             return;
         }
     }
     
-    public static void RemovePayment(Ticketmaster esql){//6
+    public static void RemovePayment(final Ticketmaster esql, final PrintStream out){//6
         String pid = "";
         String bid = "";
-        List<List<String>> result = new ArrayList<List<String>>();
 
         //get pid of payment to be cancelled
-        System.out.print("Please enter the pid of the payment to be cancelled: ");
+        out.print("Please enter the pid of the payment to be cancelled: ");
         pid = ReadUserInput().trim();
-        System.out.println("Payment ID is: " + pid + "\n");
+        out.println("Payment ID is: " + pid + "\n");
 
-        //get bid of booking corresponding to payment
-        String booking_query = "SELECT bid FROM Payments WHERE pid = " + pid;
+        //find the booking of the payment, cancel it and delete the payment in one transaction
+        final String booking_query = "SELECT bid FROM Payments WHERE pid = ?";
+        final String update_booking = "UPDATE Bookings SET status = \'Cancelled\' WHERE bid = ?";
+        final String delete_payment = "DELETE FROM Payments WHERE pid = ?";
+        final String payment = pid;
         try{
-            result = esql.executeQueryAndReturnResult(booking_query);
-            bid = result.get(0).get(0);
-            System.out.println("Booking corresponding to pid " + pid + " found: " + bid);
+            bid = esql.runInTransaction(new SessionWork<String>() {
+                public String run() throws SQLException {
+                    List<List<String>> rows = esql.executeQueryAndReturnResult(booking_query, payment);
+                    if(rows.isEmpty()) return null;
+                    String booking = rows.get(0).get(0);
+                    esql.executeUpdate(update_booking, booking);
+                    esql.executeUpdate(delete_payment, payment);
+                    esql.holds().end(booking);
+                    return booking;
+                }
+            });
+            //esql.executeQueryAndPrintResult(out, "SELECT * FROM Bookings WHERE status = \'Cancelled\'");
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("Error cancelling the booking of payment " + pid + ". Please try again later.");
             return;
         }
-
-        //update booking and delete payment
-        String update_booking = "UPDATE Bookings SET status = \'Cancelled\' WHERE bid = " + bid;
-        String delete_payment = "DELETE FROM Payments WHERE pid = " + pid;
-        try{
-            esql.executeUpdate(update_booking);
-            esql.executeUpdate(delete_payment);
-            //esql.executeQueryAndPrintResult("SELECT * FROM Bookings WHERE status = \'Cancelled\'");
-        }catch (SQLException e){
-            System.out.println("Error updating Booking entry with bid " + bid + ". Please try again later.");
+        if(bid == null){
+            out.println("No payment with pid " + pid + " was found.");
             return;
         }
-        System.out.println("Successfully deleted payment " + pid + ". Have a nice day!");
+        out.println("Booking corresponding to pid " + pid + " found: " + bid);
+        out.println("Successfully deleted payment " + pid + ". Have a nice day!");
     }
     
-    public static void ClearCancelledBookings(Ticketmaster esql){//7
-        String delete_cancelled_query = "DELETE FROM Bookings WHERE status = \'Cancelled\'";
+    public static void ClearCancelledBookings(Ticketmaster esql, PrintStream out){//7
+        String delete_cancelled_query = "DELETE FROM Bookings WHERE status = \'Cancelled\' RETURNING bid";
         try{
-            esql.executeUpdate(delete_cancelled_query);
-            esql.executeQueryAndPrintResult("SELECT * FROM Bookings WHERE Status = \'Cancelled\'");
+            ColumnarResult deleted = esql.executeQueryAndReturnColumns(delete_cancelled_query);
+            for(int i = 0; i < deleted.rowCount(); ++i){
+                esql.holds().end(deleted.getString(i, 0));
+            }
+            esql.seatIndex().invalidateAll();
+            PrintPages(esql, out, null, "SELECT * FROM Bookings WHERE Status = \'Cancelled\'", new String[] { "bid" });
         }catch(SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
-        System.out.println("Sucessfully cleared all cancelled bookings.");
+        out.println("Sucessfully cleared all cancelled bookings.");
     }
     
-    public static void RemoveShowsOnDate(Ticketmaster esql){//8
+    public static void RemoveShowsOnDate(Ticketmaster esql, PrintStream out){//8
         String query = "";
         String delete_query = "";
         String date = "";
         String cid = "";
 
-        System.out.print("Please enter the date in MM/DD/YYYY format (you can leave out the preceding 0's for month and day, for example: 1/1/2001 instead of 01/01/2001): ");
+        out.print("Please enter the date in MM/DD/YYYY format (you can leave out the preceding 0's for month and day, for example: 1/1/2001 instead of 01/01/2001): ");
         date = ReadUserInput().trim();
-        System.out.println("date is: " + date);
+        out.println("date is: " + date);
 
-        System.out.print("Please enter the cinema id: ");
+        out.print("Please enter the cinema id: ");
         cid = ReadUserInput().trim();
-        System.out.println("cid is: " + cid);
+        out.println("cid is: " + cid);
 
         //display what is about to be deleted
-        query = "SELECT * FROM Shows Where sdate = \'" + date + "\' AND sid IN (SELECT p.sid FROM Plays p, Theaters t WHERE p.tid = t.tid AND t.cid = " + cid + ")";
-        System.out.println("Delete all Shows on the date " + date + " in Cinema " + cid + ": ");
+        query = "SELECT * FROM Shows Where sdate = ? AND sid IN (SELECT p.sid FROM Plays p, Theaters t WHERE p.tid = t.tid AND t.cid = ?)";
+        out.println("Delete all Shows on the date " + date + " in Cinema " + cid + ": ");
         try{
-            esql.executeQueryAndPrintResult(query);
+            esql.executeQueryAndPrintResult(out, query, date, cid);
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
 
         //delete
-        delete_query = "DELETE FROM Shows Where sdate = \'" + date + "\' AND sid IN (SELECT p.sid FROM Plays p, Theaters t WHERE p.tid = t.tid AND t.cid = " + cid + ")";
-        System.out.println("Deleting...");
+        delete_query = "DELETE FROM Shows Where sdate = ? AND sid IN (SELECT p.sid FROM Plays p, Theaters t WHERE p.tid = t.tid AND t.cid = ?)";
+        out.println("Deleting...");
         try{
-            esql.executeUpdate(delete_query);
-            System.out.println("Deleted.");
+            esql.executeUpdate(delete_query, date, cid);
+            esql.seatIndex().invalidateAll();
+            out.println("Deleted.");
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
-            //System.out.println(e);
+            out.println("We did an oopsie on our end. Please try again later.");
+            //out.println(e);
             return;
         }
     }
     
-    public static void ListTheatersPlayingShow(Ticketmaster esql){//9
+    public static void ListTheatersPlayingShow(Ticketmaster esql, PrintStream out){//9
         //
         String query = "";
         String cid = "";
         String sid = "";
 
-        System.out.print("Please enter the cinema id: ");
+        out.print("Please enter the cinema id: ");
         cid = ReadUserInput().trim();
-        System.out.println("cid is: " + cid);
+        out.println("cid is: " + cid);
 
-        System.out.print("Please enter the show id: ");
+        out.print("Please enter the show id: ");
         sid = ReadUserInput().trim();
-        System.out.println("sid is: " + sid);
+        out.println("sid is: " + sid);
 
 
-        query = "SELECT t FROM Theaters t, Plays p WHERE p.sid = " + sid + " AND t.cid = " + cid + " AND p.tid = t.tid";
-        System.out.println("All Theaters in Cinema " + cid + " playing the show " + sid + ": ");
+        query = "SELECT t, t.tid FROM Theaters t, Plays p WHERE p.sid = ? AND t.cid = ? AND p.tid = t.tid";
+        out.println("All Theaters in Cinema " + cid + " playing the show " + sid + ": ");
         try{
-            esql.executeQueryAndPrintResult(query);
+            PrintPages(esql, out, new String[] { "Theaters", "Plays" }, query, new String[] { "tid" }, sid, cid);
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
     }
     
-    public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
+    public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql, PrintStream out){//10
         //
         String query = "";
         String date = "";
         String time = "";
 
 
-        System.out.print("Please enter the date in MM/DD/YYYY format (you can leave out the preceding 0's for month and day, for example: 1/1/2001 instead of 01/01/2001): ");
+        out.print("Please enter the date in MM/DD/YYYY format (you can leave out the preceding 0's for month and day, for example: 1/1/2001 instead of 01/01/2001): ");
         date = ReadUserInput().trim();
-        System.out.println("date is: " + date);
+        out.println("date is: " + date);
 
-        System.out.print("Please enter the time in HH:MM format (you can leave out the preceding 0 for hours, for example: 1:00 instead of 01:00): ");
+        out.print("Please enter the time in HH:MM format (you can leave out the preceding 0 for hours, for example: 1:00 instead of 01:00): ");
         time = ReadUserInput().trim();
-        System.out.println("time is: " + time);
+        out.println("time is: " + time);
 
 
-        query = "SELECT * FROM Shows WHERE sdate = '" + date + "' AND sttime = '" + time + "'";
-        System.out.println("All Shows that start on " + date + " at " + time + ": ");
+        query = "SELECT * FROM Shows WHERE sdate = ? AND sttime = ?";
+        out.println("All Shows that start on " + date + " at " + time + ": ");
         try{
-            esql.executeQueryAndPrintResult(query);
+            PrintPages(esql, out, new String[] { "Shows" }, query, new String[] { "sid" }, date, time);
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
     }
 
-    public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
+    public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql, PrintStream out){//11
         //
-        String query = "SELECT title FROM Movies WHERE title ~* 'love' AND (SELECT EXTRACT(YEAR FROM rdate) > 2010)";
-        System.out.println("Movies with titles containing 'love' released after 2010: ");
+        String query = "SELECT title, mvid FROM Movies WHERE title ~* 'love' AND (SELECT EXTRACT(YEAR FROM rdate) > 2010)";
+        out.println("Movies with titles containing 'love' released after 2010: ");
         try{
-            esql.executeQueryAndPrintResult(query);
+            PrintPages(esql, out, new String[] { "Movies" }, query, new String[] { "mvid" });
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
     }
 
-    public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
+    public static void ListUsersWithPendingBooking(Ticketmaster esql, PrintStream out){//12
         //
-        String query = "SELECT u.fname, u.lname, u.email FROM Users u, Bookings b WHERE b.status = \'Pending\' AND b.email = u.email";
+        String query = "SELECT u.fname, u.lname, u.email, b.bid FROM Users u, Bookings b WHERE b.status = \'Pending\' AND b.email = u.email";
         
-        System.out.println("User(s) with pending bookings: ");
+        out.println("User(s) with pending bookings: ");
         try{
-            esql.executeQueryAndPrintResult(query);
+            PrintPages(esql, out, new String[] { "Users", "Bookings" }, query, new String[] { "bid" });
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
     }
 
-    public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
+    public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql, PrintStream out){//13
         String date_range_low = "";
         String date_range_hi = "";
         String cid = "";
@@ -917,47 +6467,56 @@ public class Ticketmaster{
         
 
         //get start and end date
-        System.out.print("Please enter a start date of the form mm/dd/yy: ");
+        out.print("Please enter a start date of the form mm/dd/yy: ");
         date_range_low = ReadUserInput().trim();
-        System.out.println("Start date: " + date_range_low);
+        out.println("Start date: " + date_range_low);
 
-        System.out.print("Please enter a end date of the form mm/dd/yy: ");
+        out.print("Please enter a end date of the form mm/dd/yy: ");
         date_range_hi = ReadUserInput().trim();
-        System.out.println("End date: " + date_range_hi);
+        out.println("End date: " + date_range_hi);
 
-        System.out.print("Please enter the requested cinema by ID: ");
+        out.print("Please enter the requested cinema by ID: ");
         cid = ReadUserInput().trim();
-        System.out.println("Cinema ID is: " + cid);
+        out.println("Cinema ID is: " + cid);
 
-        System.out.print("Please enter the requested movie by ID: ");
+        out.print("Please enter the requested movie by ID: ");
         mvid = ReadUserInput().trim();
-        System.out.println("Movie ID is: " + mvid);
+        out.println("Movie ID is: " + mvid);
 
         //Need shows, plays, cinema, theater, movies
-        String get_shows = "SELECT m.title as Title, round((m.duration + 0.0)/3600, 2) as Duration, s.sdate as Showdate, s.sttime FROM Plays p, Shows s, Cinemas c, Theaters t, Movies m WHERE c.cid = t.cid AND t.tid = p.tid AND p.sid = s.sid AND s.mvid = m.mvid " + 
-            "AND m.mvid = " + mvid + " AND c.cid = " + cid + " AND s.sdate > \'" + date_range_low + "\' AND s.sdate < \'" + date_range_hi + "\'";
-        
-        try { //display result
-            results = esql.executeQueryAndReturnResult(get_shows);
-        }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later. " + e);
-            return;
-        }
+        String get_shows = "SELECT m.title as Title, round((m.duration + 0.0)/3600, 2) as Duration, s.sdate as Showdate, s.sttime, s.sid, p.tid FROM Plays p, Shows s, Cinemas c, Theaters t, Movies m WHERE c.cid = t.cid AND t.tid = p.tid AND p.sid = s.sid AND s.mvid = m.mvid " + 
+            "AND m.mvid = ? AND c.cid = ? AND s.sdate > ? AND s.sdate < ?";
 
-        System.out.println("Displaying shows at Cinema " + cid + " with mvid " + mvid + " between " + date_range_low + " and " + date_range_hi);
-        System.out.println("+-----------------------------+----------+---------------+------------+");
-        System.out.printf("|%30s %10s %15s %12s", "TITLE            |", "DURATION|", "SHOWDATE|", "START TIME|");
-        System.out.println();
-        System.out.println("+-----------------------------+----------+---------------+------------+");
-        for(List<String> dat: results){
-            System.out.printf("|%30s %10s %15s %12s",
-                dat.get(0) + " ", dat.get(1) + " ", dat.get(2) + " ", dat.get(3) + " |");
-            System.out.println();
-        }
-        System.out.println("+-----------------------------+----------+---------------+------------+");
+        out.println("Displaying shows at Cinema " + cid + " with mvid " + mvid + " between " + date_range_low + " and " + date_range_hi);
+        out.println("+-----------------------------+----------+---------------+------------+");
+        out.printf("|%30s %10s %15s %12s", "TITLE            |", "DURATION|", "SHOWDATE|", "START TIME|");
+        out.println();
+        out.println("+-----------------------------+----------+---------------+------------+");
+        String token = null;
+        do {
+            try { //display one page of the result
+                Page page = esql.executeQueryPage(new String[] { "Plays", "Shows", "Cinemas", "Theaters", "Movies" },
+                    get_shows, new String[] { "sid", "tid" }, PAGE_SIZE, token, mvid, cid, date_range_low, date_range_hi);
+                results = page.asRows();
+                token = page.nextToken();
+            }catch (SQLException e) {
+                out.println("We did an oopsie on our end. Please try again later. " + e);
+                return;
+            }
+            for(List<String> dat: results){
+                out.printf("|%30s %10s %15s %12s",
+                    dat.get(0) + " ", dat.get(1) + " ", dat.get(2) + " ", dat.get(3) + " |");
+                out.println();
+            }
+            if(token != null && scriptedInput.get() == null){
+                out.print("-- press Enter for more or q to stop: ");
+                if(ReadUserInput().trim().equalsIgnoreCase("q")) break;
+            }
+        } while(token != null);
+        out.println("+-----------------------------+----------+---------------+------------+");
     }
 
-    public static void ListBookingInfoForUser(Ticketmaster esql){//14
+    public static void ListBookingInfoForUser(Ticketmaster esql, PrintStream out){//14
         //
         String email = "";
         String query = "";
@@ -965,37 +6524,57 @@ public class Ticketmaster{
         String list_query = "";
         
 
-        System.out.print("Please enter user email: ");
+        out.print("Please enter user email: ");
         email = ReadUserInput().trim();
-        System.out.println("email is: " + email);
+        out.println("email is: " + email);
 
         
-        query = "SELECT * FROM Bookings WHERE email = \'" + email + "\'";
+        query = "SELECT * FROM Bookings WHERE email = ?";
 
+        //a "no" may come from a filter built before another client added the user, so the query still decides
         try { //check if user exists
-            number_rows_returned = esql.executeQueryAndPrintResult(query);
+            number_rows_returned = PrintPages(esql, out, null, query, new String[] { "bid" }, email);
         }catch (SQLException e) {
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
 
         if (number_rows_returned > 0){
-            System.out.println("User with the email " + email + " exists.");
+            esql.userDirectory().registered(email);
+            out.println("User with the email " + email + " exists.");
         }
         else { //(number_rows_returned == 0)
-            System.out.println("Error: User with the email " + email + " does not exist.");
+            out.println("Error: User with the email " + email + " does not exist.");
             return;
         }
 
 
 
-        list_query = "SELECT m.title, s.sdate, s.sttime, t.tname, cs.sno FROM Movies m, Shows s, Bookings b, ShowSeats ss, Theaters t, CinemaSeats cs WHERE b.email = \'" + email + "\' AND s.sid = b.sid AND m.mvid = s.mvid AND b.bid = ss.bid AND cs.csid = ss.csid AND cs.tid = t.tid";
-        System.out.println(email + "\'s bookings information: ");
+        list_query = "SELECT m.title, s.sdate, s.sttime, t.tname, cs.sno, ss.ssid FROM Movies m, Shows s, Bookings b, ShowSeats ss, Theaters t, CinemaSeats cs WHERE b.email = ? AND s.sid = b.sid AND m.mvid = s.mvid AND b.bid = ss.bid AND cs.csid = ss.csid AND cs.tid = t.tid";
+        out.println(email + "\'s bookings information: ");
         try{
-            esql.executeQueryAndPrintResult(list_query);
+            PrintPages(esql, out, null, list_query, new String[] { "ssid" }, email);
         }catch (SQLException e){
-            System.out.println("We did an oopsie on our end. Please try again later.");
+            out.println("We did an oopsie on our end. Please try again later.");
             return;
         }
     }
-}
\ No newline at end of file
+
+    public static void PrintStatistics(Ticketmaster esql, PrintStream out){//15
+        Metrics.print(out, "\nOperations (latency in microseconds, RT = database round trips):", esql.metrics().operations());
+        Metrics.print(out, "\nSQL templates:", esql.metrics().statements());
+        out.println("\nConnection pool: " + esql.getPoolStatistics());
+        out.println("Result cache: " + esql.getResultCacheStatistics());
+        out.println("User directory: " + esql.userDirectory().getStatistics());
+        out.println("Holds: " + esql.holds().getStatistics());
+        out.println("Replicas: " + esql.replicas().getStatistics());
+        out.println("Partitions: " + esql.partitions().getStatistics());
+        out.println("Startup: " + STARTUP);
+
+        out.print("\nReset statistics? (y/n): ");
+        if(ReadUserInput().trim().equalsIgnoreCase("y")){
+            esql.metrics().reset();
+            out.println("Statistics have been reset.");
+        }
+    }
+}